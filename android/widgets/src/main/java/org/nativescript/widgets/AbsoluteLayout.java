@@ -70,12 +70,10 @@ public class AbsoluteLayout extends LayoutBase {
 		
 		    int childLeft = leftPadding + childLayoutParams.left;
 		    int childTop = topPadding + childLayoutParams.top;
-		    int childRight = childLeft + childWidth + childLayoutParams.leftMargin + childLayoutParams.rightMargin;
-		    int childBottom = childTop + childHeight + childLayoutParams.topMargin + childLayoutParams.bottomMargin;
+		    int childRight = childLeft + childWidth + childLayoutParams.getComputedLeftMargin() + childLayoutParams.getComputedRightMargin();
+		    int childBottom = childTop + childHeight + childLayoutParams.getComputedTopMargin() + childLayoutParams.getComputedBottomMargin();
 		
 		    CommonLayoutParams.layoutChild(child, childLeft, childTop, childRight, childBottom);
 		}
-
-		CommonLayoutParams.restoreOriginalParams(this);
     }
 }
\ No newline at end of file
@@ -5,307 +5,1908 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
+import android.os.Build;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+import android.support.v4.util.LruCache;
 import android.util.Base64;
 import android.util.Log;
 
 import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.net.CookieHandler;
 import java.net.CookieManager;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Stack;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.zip.GZIPInputStream;
 
+import org.nativescript.widgets.image.Cache;
+import org.nativescript.widgets.image.DiskLruCache;
+
 public class Async {
     static final String TAG = "Async";
-    static ThreadPoolExecutor executor = null;
 
-    static ThreadPoolExecutor threadPoolExecutor() {
-        if (executor == null) {
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 5;
+    public static final int PRIORITY_HIGH = 10;
+
+    static final String REJECTED_ERROR = "The task was rejected, the executor queue is full.";
+
+    private static ExecutorOptions executorOptions = new ExecutorOptions();
+    private static PriorityExecutor networkExecutor;
+    private static PriorityExecutor decodeExecutor;
+
+    /*
+     * Network requests and image decoding run on separate pools so that a burst of one kind
+     * of work cannot starve the other. Both pools prefer tasks with higher priority and keep
+     * FIFO order among tasks with the same priority.
+     */
+    public static class ExecutorOptions {
+        public int networkThreads;
+        public int decodeThreads;
+
+        // Maximum number of queued tasks per pool, zero or negative means unbounded.
+        public int queueCapacity = 1024;
+
+        public ExecutorOptions() {
             int NUMBER_OF_CORES = Runtime.getRuntime().availableProcessors();
-            ThreadFactory backgroundPriorityThreadFactory = new PriorityThreadFactory(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+            this.networkThreads = NUMBER_OF_CORES * 2;
+            this.decodeThreads = NUMBER_OF_CORES;
+        }
+    }
 
-            executor = new ThreadPoolExecutor(
-                    NUMBER_OF_CORES * 2,
-                    NUMBER_OF_CORES * 2,
-                    60L,
-                    TimeUnit.SECONDS,
-                    new LinkedBlockingQueue<Runnable>(),
-                    backgroundPriorityThreadFactory
-            );
+    public static synchronized void setExecutorOptions(ExecutorOptions options) {
+        if (options == null) {
+            options = new ExecutorOptions();
         }
 
-        return executor;
+        executorOptions = options;
+        if (networkExecutor != null) {
+            networkExecutor.configure(options.networkThreads, options.queueCapacity);
+        }
+        if (decodeExecutor != null) {
+            decodeExecutor.configure(options.decodeThreads, options.queueCapacity);
+        }
     }
 
-    public interface CompleteCallback {
-        void onComplete(Object result, Object tag);
+    static synchronized PriorityExecutor networkExecutor() {
+        if (networkExecutor == null) {
+            networkExecutor = new PriorityExecutor(executorOptions.networkThreads, executorOptions.queueCapacity);
+        }
 
-        void onError(String error, Object tag);
+        return networkExecutor;
     }
 
-    static class PriorityThreadFactory implements ThreadFactory {
-        private final int mThreadPriority;
+    static synchronized PriorityExecutor decodeExecutor() {
+        if (decodeExecutor == null) {
+            decodeExecutor = new PriorityExecutor(executorOptions.decodeThreads, executorOptions.queueCapacity);
+        }
 
-        public PriorityThreadFactory(int threadPriority) {
-            mThreadPriority = threadPriority;
+        return decodeExecutor;
+    }
+
+    private static ScheduledThreadPoolExecutor scheduler;
+
+    /*
+     * Single thread used for timers (request deadlines, retry back-off), never runs the work itself.
+     */
+    static synchronized ScheduledThreadPoolExecutor scheduler() {
+        if (scheduler == null) {
+            scheduler = new ScheduledThreadPoolExecutor(1, new PriorityThreadFactory(android.os.Process.THREAD_PRIORITY_BACKGROUND));
+        }
+
+        return scheduler;
+    }
+
+    static void postRejected(android.os.Handler handler, final CompleteCallback callback, final Object tag) {
+        post(handler, callback, new Runnable() {
+            @Override
+            public void run() {
+                callback.onError(REJECTED_ERROR, tag);
+            }
+        });
+    }
+
+    private static android.os.Handler mainHandler;
+
+    /*
+     * Requests made on the main thread share one handler instead of allocating a new one each time.
+     */
+    static android.os.Handler createHandler() {
+        Looper mainLooper = Looper.getMainLooper();
+        if (Looper.myLooper() != mainLooper) {
+            return new android.os.Handler();
+        }
+
+        if (mainHandler == null) {
+            mainHandler = new android.os.Handler(mainLooper);
+        }
+
+        return mainHandler;
+    }
+
+    static void post(android.os.Handler handler, CompleteCallback callback, Runnable delivery) {
+        if (callback instanceof BatchDispatcher.BatchingCallback) {
+            // batched completions are queued directly and delivered once per frame
+            delivery.run();
+        } else {
+            handler.post(delivery);
+        }
+    }
+
+    /*
+     * Opt-in alternative to CompleteCallback. When the callback passed to an Async request implements this interface,
+     * completions that arrive within the same frame are delivered together with a single onBatchComplete call
+     * on the main thread instead of one onComplete/onError call each. For every index, either results[i] is set
+     * or errors[i] is not null, and tags[i] is the request id/context of that request.
+     */
+    public interface BatchCompleteCallback extends CompleteCallback {
+        void onBatchComplete(Object[] results, String[] errors, Object[] tags);
+    }
+
+    static class BatchDispatcher implements Runnable, Choreographer.FrameCallback {
+        private static BatchDispatcher instance;
+
+        private final ConcurrentLinkedQueue<Completion> pending = new ConcurrentLinkedQueue<Completion>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final android.os.Handler handler = new android.os.Handler(Looper.getMainLooper());
+
+        static synchronized BatchDispatcher getInstance() {
+            if (instance == null) {
+                instance = new BatchDispatcher();
+            }
+
+            return instance;
+        }
+
+        static CompleteCallback wrap(CompleteCallback callback) {
+            if (callback instanceof BatchCompleteCallback) {
+                return new BatchingCallback((BatchCompleteCallback) callback);
+            }
+
+            return callback;
+        }
+
+        void enqueue(BatchCompleteCallback callback, Object result, String error, Object tag) {
+            this.pending.add(new Completion(callback, result, error, tag));
+            if (this.scheduled.compareAndSet(false, true)) {
+                this.handler.post(this);
+            }
         }
 
         @Override
-        public Thread newThread(final Runnable runnable) {
-            Runnable wrapperRunnable = new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        android.os.Process.setThreadPriority(mThreadPriority);
-                    } catch (Throwable t) {
+        public void run() {
+            // the Choreographer is per thread, so the frame callback is posted from the main thread
+            Choreographer.getInstance().postFrameCallback(this);
+        }
 
-                    }
-                    runnable.run();
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            this.scheduled.set(false);
+
+            // Usually all completions go to the same callback, deliver them in order grouped by callback.
+            // Callbacks are matched by identity, groups keep the order in which their first completion arrived.
+            IdentityHashMap<BatchCompleteCallback, ArrayList<Completion>> byCallback = new IdentityHashMap<BatchCompleteCallback, ArrayList<Completion>>();
+            ArrayList<ArrayList<Completion>> groups = new ArrayList<ArrayList<Completion>>();
+            Completion completion;
+            while ((completion = this.pending.poll()) != null) {
+                ArrayList<Completion> group = byCallback.get(completion.callback);
+                if (group == null) {
+                    group = new ArrayList<Completion>();
+                    byCallback.put(completion.callback, group);
+                    groups.add(group);
                 }
-            };
-            return new Thread(wrapperRunnable);
+                group.add(completion);
+            }
+
+            for (ArrayList<Completion> group : groups) {
+                int size = group.size();
+                Object[] results = new Object[size];
+                String[] errors = new String[size];
+                Object[] tags = new Object[size];
+                for (int i = 0; i < size; i++) {
+                    Completion item = group.get(i);
+                    results[i] = item.result;
+                    errors[i] = item.error;
+                    tags[i] = item.tag;
+                }
+
+                try {
+                    group.get(0).callback.onBatchComplete(results, errors, tags);
+                } catch (Throwable t) {
+                    Log.e(TAG, "Failed to deliver batched completions: " + t.getMessage());
+                }
+            }
+        }
+
+        static class Completion {
+            final BatchCompleteCallback callback;
+            final Object result;
+            final String error;
+            final Object tag;
+
+            Completion(BatchCompleteCallback callback, Object result, String error, Object tag) {
+                this.callback = callback;
+                this.result = result;
+                this.error = error;
+                this.tag = tag;
+            }
+        }
+
+        /*
+         * Forwards the completions of a single request into the dispatcher queue, can be called from any thread.
+         */
+        static class BatchingCallback implements CompleteCallback {
+            private final BatchCompleteCallback callback;
+
+            BatchingCallback(BatchCompleteCallback callback) {
+                this.callback = callback;
+            }
+
+            @Override
+            public void onComplete(Object result, Object tag) {
+                getInstance().enqueue(this.callback, result, null, tag);
+            }
+
+            @Override
+            public void onError(String error, Object tag) {
+                getInstance().enqueue(this.callback, null, error, tag);
+            }
         }
     }
 
-    public static class Image {
+    static abstract class PriorityRunnable implements Runnable, Comparable<PriorityRunnable> {
+        private static final AtomicLong sequencer = new AtomicLong();
+
+        final int priority;
+        final long sequence;
+
+        PriorityRunnable(int priority) {
+            this.priority = priority;
+            this.sequence = sequencer.getAndIncrement();
+        }
+
         /*
-         * The request id parameter is needed for the sake of the JavaScript implementation.
-         * Because we want to use only one extend of the CompleteCallback interface (for the sake of better performance)
-         * we use this id to detect the initial request, which result is currently received in the complete callback.
-         * When the async task completes it will pass back this id to JavaScript.
+         * Called instead of run when the executor drops the task.
          */
-        public static void fromResource(final String name, final Context context, final int requestId, final CompleteCallback callback) {
-            final android.os.Handler mHandler = new android.os.Handler();
-            threadPoolExecutor().execute(new Runnable() {
-                @Override
-                public void run() {
-                    final LoadImageFromResourceTask task = new LoadImageFromResourceTask(context, requestId, callback);
-                    final Bitmap result = task.doInBackground(name);
-                    mHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            task.onPostExecute(result);
-                        }
-                    });
-                }
-            });
+        abstract void onRejected();
+
+        @Override
+        public int compareTo(PriorityRunnable other) {
+            if (this.priority != other.priority) {
+                return this.priority > other.priority ? -1 : 1;
+            }
+
+            return this.sequence < other.sequence ? -1 : (this.sequence == other.sequence ? 0 : 1);
         }
+    }
 
-        public static void fromFile(final String fileName, final int requestId, final CompleteCallback callback) {
-            final android.os.Handler mHandler = new android.os.Handler();
-            threadPoolExecutor().execute(new Runnable() {
-                @Override
-                public void run() {
-                    final LoadImageFromFileTask task = new LoadImageFromFileTask(requestId, callback);
-                    final Bitmap result = task.doInBackground(fileName);
-                    mHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            task.onPostExecute(result);
-                        }
-                    });
+    /*
+     * Work queue with one FIFO lane per priority, so taking the next task and evicting the
+     * lowest one only touch the first and last lane instead of scanning every queued task.
+     */
+    static class LaneQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+        private final TreeMap<Integer, ArrayDeque<PriorityRunnable>> lanes = new TreeMap<Integer, ArrayDeque<PriorityRunnable>>(Collections.<Integer>reverseOrder());
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private int count;
+
+        @Override
+        public boolean offer(Runnable runnable) {
+            PriorityRunnable task = (PriorityRunnable) runnable;
+            this.lock.lock();
+            try {
+                ArrayDeque<PriorityRunnable> lane = this.lanes.get(task.priority);
+                if (lane == null) {
+                    lane = new ArrayDeque<PriorityRunnable>();
+                    this.lanes.put(task.priority, lane);
                 }
-            });
+                lane.addLast(task);
+                this.count++;
+                this.notEmpty.signal();
+                return true;
+            } finally {
+                this.lock.unlock();
+            }
         }
 
-        public static void fromBase64(final String source, final int requestId, final CompleteCallback callback) {
-            final android.os.Handler mHandler = new android.os.Handler();
-            threadPoolExecutor().execute(new Runnable() {
-                @Override
-                public void run() {
-                    final LoadImageFromBase64StringTask task = new LoadImageFromBase64StringTask(requestId, callback);
-                    final Bitmap result = task.doInBackground(source);
-                    mHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            task.onPostExecute(result);
-                        }
-                    });
-                }
-            });
+        @Override
+        public boolean offer(Runnable runnable, long timeout, TimeUnit unit) {
+            return this.offer(runnable);
         }
 
-        public static void download(final String url, final CompleteCallback callback, final Object context) {
-            final android.os.Handler mHandler = new android.os.Handler();
-            threadPoolExecutor().execute(new Runnable() {
-                @Override
-                public void run() {
-                    final DownloadImageTask task = new DownloadImageTask(callback, context);
-                    final Bitmap result = task.doInBackground(url);
-                    mHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            task.onPostExecute(result);
-                        }
-                    });
+        @Override
+        public void put(Runnable runnable) {
+            this.offer(runnable);
+        }
+
+        @Override
+        public Runnable poll() {
+            this.lock.lock();
+            try {
+                return this.dequeue();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        @Override
+        public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+            long nanos = unit.toNanos(timeout);
+            this.lock.lockInterruptibly();
+            try {
+                while (this.count == 0) {
+                    if (nanos <= 0) {
+                        return null;
+                    }
+                    nanos = this.notEmpty.awaitNanos(nanos);
                 }
-            });
+                return this.dequeue();
+            } finally {
+                this.lock.unlock();
+            }
         }
 
-        static class DownloadImageTask {
-            private CompleteCallback callback;
-            private Object context;
+        @Override
+        public Runnable take() throws InterruptedException {
+            this.lock.lockInterruptibly();
+            try {
+                while (this.count == 0) {
+                    this.notEmpty.await();
+                }
+                return this.dequeue();
+            } finally {
+                this.lock.unlock();
+            }
+        }
 
-            public DownloadImageTask(CompleteCallback callback, Object context) {
-                this.callback = callback;
-                this.context = context;
+        @Override
+        public Runnable peek() {
+            this.lock.lock();
+            try {
+                return this.count == 0 ? null : this.lanes.firstEntry().getValue().peekFirst();
+            } finally {
+                this.lock.unlock();
             }
+        }
 
-            protected Bitmap doInBackground(String... params) {
-                InputStream stream = null;
-                try {
-                    stream = new java.net.URL(params[0]).openStream();
-                    Bitmap bmp = BitmapFactory.decodeStream(stream);
-                    return bmp;
-                } catch (MalformedURLException e) {
-                    Log.e(TAG, "Failed to decode stream, MalformedURLException: " + e.getMessage());
+        /*
+         * Removes the newest task of the lowest lane if that lane is below the given priority.
+         */
+        PriorityRunnable pollLowerThan(int priority) {
+            this.lock.lock();
+            try {
+                if (this.count == 0) {
                     return null;
-                } catch (IOException e) {
-                    Log.e(TAG, "Failed to decode stream, IOException: " + e.getMessage());
+                }
+
+                Map.Entry<Integer, ArrayDeque<PriorityRunnable>> lowest = this.lanes.lastEntry();
+                if (lowest.getKey() >= priority) {
                     return null;
-                } finally {
-                    if (stream != null) {
-                        try {
-                            stream.close();
-                        } catch (IOException e) {
-                            Log.e(TAG, "Failed to close stream, IOException: " + e.getMessage());
-                        }
-                    }
                 }
+
+                PriorityRunnable task = lowest.getValue().pollLast();
+                if (lowest.getValue().isEmpty()) {
+                    this.lanes.remove(lowest.getKey());
+                }
+                this.count--;
+                return task;
+            } finally {
+                this.lock.unlock();
             }
+        }
 
-            protected void onPostExecute(final Bitmap result) {
-                if (result != null) {
-                    this.callback.onComplete(result, this.context);
-                } else {
-                    this.callback.onError("DownloadImageTask returns no result.", this.context);
+        @Override
+        public boolean remove(Object object) {
+            if (!(object instanceof PriorityRunnable)) {
+                return false;
+            }
+
+            PriorityRunnable task = (PriorityRunnable) object;
+            this.lock.lock();
+            try {
+                ArrayDeque<PriorityRunnable> lane = this.lanes.get(task.priority);
+                if (lane == null || !lane.remove(task)) {
+                    return false;
                 }
+                if (lane.isEmpty()) {
+                    this.lanes.remove(task.priority);
+                }
+                this.count--;
+                return true;
+            } finally {
+                this.lock.unlock();
             }
         }
 
-        static class LoadImageFromResourceTask {
-            private CompleteCallback callback;
-            private Context context;
-            private int requestId;
+        @Override
+        public int size() {
+            this.lock.lock();
+            try {
+                return this.count;
+            } finally {
+                this.lock.unlock();
+            }
+        }
 
-            public LoadImageFromResourceTask(Context context, int requestId, CompleteCallback callback) {
-                this.callback = callback;
-                this.context = context;
-                this.requestId = requestId;
+        @Override
+        public int remainingCapacity() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public int drainTo(Collection<? super Runnable> target) {
+            return this.drainTo(target, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public int drainTo(Collection<? super Runnable> target, int maxElements) {
+            this.lock.lock();
+            try {
+                int drained = 0;
+                while (drained < maxElements && this.count > 0) {
+                    target.add(this.dequeue());
+                    drained++;
+                }
+                return drained;
+            } finally {
+                this.lock.unlock();
             }
+        }
 
-            protected Bitmap doInBackground(String... params) {
-                String name = params[0];
-                Resources res = this.context.getResources();
-                int id = res.getIdentifier(name, "drawable", context.getPackageName());
+        @Override
+        public Iterator<Runnable> iterator() {
+            // iterate over a snapshot, removals go back through remove(Object)
+            final ArrayList<Runnable> snapshot = new ArrayList<Runnable>();
+            this.lock.lock();
+            try {
+                for (ArrayDeque<PriorityRunnable> lane : this.lanes.values()) {
+                    snapshot.addAll(lane);
+                }
+            } finally {
+                this.lock.unlock();
+            }
 
-                if (id > 0) {
-                    BitmapDrawable result = (BitmapDrawable) res.getDrawable(id);
-                    return result.getBitmap();
+            return new Iterator<Runnable>() {
+                private int index;
+
+                @Override
+                public boolean hasNext() {
+                    return this.index < snapshot.size();
+                }
+
+                @Override
+                public Runnable next() {
+                    return snapshot.get(this.index++);
+                }
+
+                @Override
+                public void remove() {
+                    LaneQueue.this.remove(snapshot.get(this.index - 1));
                 }
+            };
+        }
 
+        private PriorityRunnable dequeue() {
+            if (this.count == 0) {
                 return null;
             }
 
-            protected void onPostExecute(final Bitmap result) {
-                if (result != null) {
-                    this.callback.onComplete(result, this.requestId);
-                } else {
-                    this.callback.onError("LoadImageFromResourceTask returns no result.", this.requestId);
+            Map.Entry<Integer, ArrayDeque<PriorityRunnable>> highest = this.lanes.firstEntry();
+            PriorityRunnable task = highest.getValue().pollFirst();
+            if (highest.getValue().isEmpty()) {
+                this.lanes.remove(highest.getKey());
+            }
+            this.count--;
+            return task;
+        }
+    }
+
+    static class PriorityExecutor extends ThreadPoolExecutor {
+        private int queueCapacity;
+
+        PriorityExecutor(int threads, int queueCapacity) {
+            super(
+                    Math.max(threads, 1),
+                    Math.max(threads, 1),
+                    60L,
+                    TimeUnit.SECONDS,
+                    new LaneQueue(),
+                    new PriorityThreadFactory(android.os.Process.THREAD_PRIORITY_BACKGROUND)
+            );
+            this.queueCapacity = queueCapacity;
+        }
+
+        synchronized void configure(int threads, int queueCapacity) {
+            threads = Math.max(threads, 1);
+            if (threads > this.getMaximumPoolSize()) {
+                this.setMaximumPoolSize(threads);
+                this.setCorePoolSize(threads);
+            } else {
+                this.setCorePoolSize(threads);
+                this.setMaximumPoolSize(threads);
+            }
+            this.queueCapacity = queueCapacity;
+        }
+
+        @Override
+        public void execute(final Runnable command) {
+            if (!(command instanceof PriorityRunnable)) {
+                this.execute(new PriorityRunnable(PRIORITY_NORMAL) {
+                    @Override
+                    public void run() {
+                        command.run();
+                    }
+
+                    @Override
+                    void onRejected() {
+                        Log.w(TAG, REJECTED_ERROR);
+                    }
+                });
+                return;
+            }
+
+            PriorityRunnable task = (PriorityRunnable) command;
+            PriorityRunnable evicted = null;
+            synchronized (this) {
+                LaneQueue queue = (LaneQueue) this.getQueue();
+                if (this.queueCapacity > 0 && queue.size() >= this.queueCapacity) {
+                    // When the queue is full the new task can only take the place of a lower priority one.
+                    evicted = queue.pollLowerThan(task.priority);
+                    if (evicted == null) {
+                        evicted = task;
+                    }
+                }
+
+                if (evicted != task) {
+                    super.execute(task);
+                }
+            }
+
+            if (evicted != null) {
+                evicted.onRejected();
+            }
+        }
+    }
+
+    static final String CANCELLED_ERROR = "The request was cancelled.";
+
+    /*
+     * Returned by the asynchronous requests so they can be cancelled. A cancelled request reports
+     * CANCELLED_ERROR through CompleteCallback.onError instead of its result.
+     */
+    public static class RequestHandle {
+        private final SharedTask<?> task;
+        private final Subscriber subscriber;
+
+        RequestHandle(SharedTask<?> task, Subscriber subscriber) {
+            this.task = task;
+            this.subscriber = subscriber;
+        }
+
+        public void cancel() {
+            this.task.unsubscribe(this.subscriber);
+        }
+
+        public boolean isCancelled() {
+            return this.subscriber.cancelled;
+        }
+    }
+
+    static class Subscriber {
+        final CompleteCallback callback;
+        final Object tag;
+        final android.os.Handler handler;
+        volatile boolean cancelled;
+
+        Subscriber(CompleteCallback callback, Object tag, android.os.Handler handler) {
+            this.callback = callback;
+            this.tag = tag;
+            this.handler = handler;
+        }
+    }
+
+    /*
+     * A task whose result is delivered to one or more subscribers. Tasks submitted with a key
+     * are shared: while a task with the same key is in flight, new requests subscribe to it
+     * instead of doing the same work again. The task is cancelled once all of its subscribers cancel.
+     */
+    static abstract class SharedTask<Result> extends PriorityRunnable {
+        private final ConcurrentHashMap<String, SharedTask<?>> inFlight;
+        private final String key;
+        private final ArrayList<Subscriber> subscribers = new ArrayList<Subscriber>(1);
+        private PriorityExecutor executor;
+        private boolean finished;
+        volatile boolean cancelled;
+
+        SharedTask(int priority, ConcurrentHashMap<String, SharedTask<?>> inFlight, String key) {
+            super(priority);
+            this.inFlight = inFlight;
+            this.key = key;
+        }
+
+        abstract Result doInBackground();
+
+        // Called on the subscriber handler thread.
+        abstract void deliver(Result result, CompleteCallback callback, Object tag);
+
+        // Called when the work should be aborted while it is running.
+        void abort() {
+        }
+
+        // Returns the delay in milliseconds after which the work should run again, or a negative value when done.
+        long retryDelay(Result result) {
+            return -1;
+        }
+
+        // Returns a result for an additional subscriber, so coalesced subscribers do not share mutable state.
+        Result copyResult(Result result) {
+            return result;
+        }
+
+        static RequestHandle submit(PriorityExecutor executor, SharedTask<?> task, Subscriber subscriber) {
+            if (task.key != null) {
+                while (true) {
+                    SharedTask<?> existing = task.inFlight.putIfAbsent(task.key, task);
+                    if (existing == null) {
+                        break;
+                    }
+
+                    if (existing.subscribe(subscriber)) {
+                        return new RequestHandle(existing, subscriber);
+                    }
+
+                    // The existing task has just finished, replace it.
+                    task.inFlight.remove(task.key, existing);
+                }
+            }
+
+            task.executor = executor;
+            task.subscribe(subscriber);
+            executor.execute(task);
+            return new RequestHandle(task, subscriber);
+        }
+
+        private synchronized boolean subscribe(Subscriber subscriber) {
+            if (this.finished || this.cancelled) {
+                return false;
+            }
+
+            this.subscribers.add(subscriber);
+            return true;
+        }
+
+        void unsubscribe(final Subscriber subscriber) {
+            boolean cancelTask;
+            synchronized (this) {
+                if (!this.subscribers.remove(subscriber)) {
+                    return;
+                }
+
+                subscriber.cancelled = true;
+                cancelTask = this.subscribers.isEmpty() && !this.finished;
+                if (cancelTask) {
+                    this.cancelled = true;
+                }
+            }
+
+            post(subscriber.handler, subscriber.callback, new Runnable() {
+                @Override
+                public void run() {
+                    subscriber.callback.onError(CANCELLED_ERROR, subscriber.tag);
+                }
+            });
+
+            if (cancelTask) {
+                this.removeInFlight();
+                if (this.executor == null || !this.executor.remove(this)) {
+                    this.abort();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            if (this.cancelled) {
+                return;
+            }
+
+            final Result result = this.doInBackground();
+
+            long delay = this.retryDelay(result);
+            if (delay >= 0 && !this.cancelled) {
+                // wait on the scheduler instead of holding a pool thread
+                scheduler().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!cancelled) {
+                            executor.execute(SharedTask.this);
+                        }
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+                return;
+            }
+
+            Subscriber[] targets;
+            synchronized (this) {
+                this.finished = true;
+                targets = this.subscribers.toArray(new Subscriber[this.subscribers.size()]);
+            }
+            this.removeInFlight();
+
+            for (int i = 0; i < targets.length; i++) {
+                final Subscriber target = targets[i];
+
+                // the first subscriber gets the original, copies are made here before any callback can touch it
+                final Result targetResult = i == 0 ? result : this.copyResult(result);
+                post(target.handler, target.callback, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!target.cancelled) {
+                            deliver(targetResult, target.callback, target.tag);
+                        }
+                    }
+                });
+            }
+        }
+
+        @Override
+        void onRejected() {
+            Subscriber[] targets;
+            synchronized (this) {
+                this.finished = true;
+                targets = this.subscribers.toArray(new Subscriber[this.subscribers.size()]);
+            }
+            this.removeInFlight();
+
+            for (Subscriber target : targets) {
+                postRejected(target.handler, target.callback, target.tag);
+            }
+        }
+
+        private void removeInFlight() {
+            if (this.key != null) {
+                this.inFlight.remove(this.key, this);
+            }
+        }
+    }
+
+    public interface CompleteCallback {
+        void onComplete(Object result, Object tag);
+
+        void onError(String error, Object tag);
+    }
+
+    static class PriorityThreadFactory implements ThreadFactory {
+        private final int mThreadPriority;
+
+        public PriorityThreadFactory(int threadPriority) {
+            mThreadPriority = threadPriority;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Runnable wrapperRunnable = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        android.os.Process.setThreadPriority(mThreadPriority);
+                    } catch (Throwable t) {
+
+                    }
+                    runnable.run();
+                }
+            };
+            return new Thread(wrapperRunnable);
+        }
+    }
+
+    public static class Image {
+        /*
+         * The request id parameter is needed for the sake of the JavaScript implementation.
+         * Because we want to use only one extend of the CompleteCallback interface (for the sake of better performance)
+         * we use this id to detect the initial request, which result is currently received in the complete callback.
+         * When the async task completes it will pass back this id to JavaScript.
+         */
+        public static void fromResource(final String name, final Context context, final int requestId, final CompleteCallback callback) {
+            fromResource(name, context, requestId, callback, PRIORITY_NORMAL);
+        }
+
+        public static void fromResource(final String name, final Context context, final int requestId, final CompleteCallback callback, final int priority) {
+            final android.os.Handler mHandler = createHandler();
+            final CompleteCallback resultCallback = BatchDispatcher.wrap(callback);
+            decodeExecutor().execute(new PriorityRunnable(priority) {
+                @Override
+                public void run() {
+                    final LoadImageFromResourceTask task = new LoadImageFromResourceTask(context, requestId, resultCallback);
+                    final Bitmap result = task.doInBackground(name);
+                    post(mHandler, resultCallback, new Runnable() {
+                        @Override
+                        public void run() {
+                            task.onPostExecute(result);
+                        }
+                    });
+                }
+
+                @Override
+                void onRejected() {
+                    postRejected(mHandler, resultCallback, requestId);
+                }
+            });
+        }
+
+        public static void fromFile(final String fileName, final int requestId, final CompleteCallback callback) {
+            fromFile(fileName, requestId, callback, PRIORITY_NORMAL);
+        }
+
+        public static void fromFile(final String fileName, final int requestId, final CompleteCallback callback, final int priority) {
+            final android.os.Handler mHandler = createHandler();
+            final CompleteCallback resultCallback = BatchDispatcher.wrap(callback);
+            decodeExecutor().execute(new PriorityRunnable(priority) {
+                @Override
+                public void run() {
+                    final LoadImageFromFileTask task = new LoadImageFromFileTask(requestId, resultCallback);
+                    final Bitmap result = task.doInBackground(fileName);
+                    post(mHandler, resultCallback, new Runnable() {
+                        @Override
+                        public void run() {
+                            task.onPostExecute(result);
+                        }
+                    });
+                }
+
+                @Override
+                void onRejected() {
+                    postRejected(mHandler, resultCallback, requestId);
+                }
+            });
+        }
+
+        public static void fromBase64(final String source, final int requestId, final CompleteCallback callback) {
+            fromBase64(source, requestId, callback, PRIORITY_NORMAL);
+        }
+
+        public static void fromBase64(final String source, final int requestId, final CompleteCallback callback, final int priority) {
+            final android.os.Handler mHandler = createHandler();
+            final CompleteCallback resultCallback = BatchDispatcher.wrap(callback);
+            decodeExecutor().execute(new PriorityRunnable(priority) {
+                @Override
+                public void run() {
+                    final LoadImageFromBase64StringTask task = new LoadImageFromBase64StringTask(requestId, resultCallback);
+                    final Bitmap result = task.doInBackground(source);
+                    post(mHandler, resultCallback, new Runnable() {
+                        @Override
+                        public void run() {
+                            task.onPostExecute(result);
+                        }
+                    });
+                }
+
+                @Override
+                void onRejected() {
+                    postRejected(mHandler, resultCallback, requestId);
+                }
+            });
+        }
+
+        private static final ConcurrentHashMap<String, SharedTask<?>> inFlightDownloads = new ConcurrentHashMap<String, SharedTask<?>>();
+
+        public static RequestHandle download(final String url, final CompleteCallback callback, final Object context) {
+            return download(url, callback, context, PRIORITY_NORMAL);
+        }
+
+        /*
+         * Concurrent downloads of the same url share a single network request.
+         */
+        public static RequestHandle download(final String url, final CompleteCallback callback, final Object context, final int priority) {
+            final android.os.Handler mHandler = createHandler();
+            final CompleteCallback resultCallback = BatchDispatcher.wrap(callback);
+            final DownloadImageTask task = new DownloadImageTask(resultCallback, context);
+            SharedTask<Bitmap> sharedTask = new SharedTask<Bitmap>(priority, inFlightDownloads, url) {
+                @Override
+                Bitmap doInBackground() {
+                    return task.doInBackground(url);
+                }
+
+                @Override
+                void deliver(Bitmap result, CompleteCallback callback, Object tag) {
+                    new DownloadImageTask(callback, tag).onPostExecute(result);
+                }
+
+                @Override
+                void abort() {
+                    task.cancel();
+                }
+            };
+
+            return SharedTask.submit(networkExecutor(), sharedTask, new Subscriber(resultCallback, context, mHandler));
+        }
+
+        static class DownloadImageTask implements Http.ConnectionWait {
+            private CompleteCallback callback;
+            private Object context;
+            private volatile InputStream stream;
+            private volatile HttpURLConnection connection;
+            private volatile boolean cancelled;
+
+            public DownloadImageTask(CompleteCallback callback, Object context) {
+                this.callback = callback;
+                this.context = context;
+            }
+
+            protected Bitmap doInBackground(String... params) {
+                Http.Transport transport = null;
+                HttpURLConnection connection = null;
+                boolean reusable = false;
+                InputStream stream = null;
+                try {
+                    URL url = new URL(params[0]);
+                    if ("http".equals(url.getProtocol()) || "https".equals(url.getProtocol())) {
+                        // share the keep-alive connections and per-host limits with Async.Http
+                        transport = Http.getTransport();
+                        connection = Http.openConnection(transport, url, this);
+                        this.connection = connection;
+                        if (this.cancelled) {
+                            throw new InterruptedIOException(CANCELLED_ERROR);
+                        }
+                        stream = connection.getInputStream();
+                    } else {
+                        stream = url.openStream();
+                    }
+                    this.stream = stream;
+                    Bitmap bmp = BitmapFactory.decodeStream(stream);
+
+                    // the connection can only go back to the pool when the decoder consumed the whole body
+                    reusable = connection != null && isFullyRead(stream);
+                    return bmp;
+                } catch (MalformedURLException e) {
+                    Log.e(TAG, "Failed to decode stream, MalformedURLException: " + e.getMessage());
+                    return null;
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to decode stream, IOException: " + e.getMessage());
+                    return null;
+                } finally {
+                    if (stream != null) {
+                        try {
+                            stream.close();
+                        } catch (IOException e) {
+                            reusable = false;
+                            Log.e(TAG, "Failed to close stream, IOException: " + e.getMessage());
+                        }
+                    }
+                    if (transport != null) {
+                        transport.release(connection, reusable);
+                    }
+                }
+            }
+
+            protected void onPostExecute(final Bitmap result) {
+                if (result != null) {
+                    this.callback.onComplete(result, this.context);
+                } else {
+                    this.callback.onError("DownloadImageTask returns no result.", this.context);
+                }
+            }
+
+            @Override
+            public boolean shouldWait() {
+                return !this.cancelled;
+            }
+
+            private static boolean isFullyRead(InputStream stream) {
+                try {
+                    return stream.read() == -1;
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+
+            void cancel() {
+                this.cancelled = true;
+
+                // disconnecting or closing the stream makes the pending connect/read in doInBackground fail
+                HttpURLConnection connection = this.connection;
+                if (connection != null) {
+                    connection.disconnect();
+                }
+
+                InputStream stream = this.stream;
+                if (stream != null) {
+                    try {
+                        stream.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Failed to close stream, IOException: " + e.getMessage());
+                    }
+                }
+            }
+        }
+
+        static class LoadImageFromResourceTask {
+            private CompleteCallback callback;
+            private Context context;
+            private int requestId;
+
+            public LoadImageFromResourceTask(Context context, int requestId, CompleteCallback callback) {
+                this.callback = callback;
+                this.context = context;
+                this.requestId = requestId;
+            }
+
+            protected Bitmap doInBackground(String... params) {
+                String name = params[0];
+                Resources res = this.context.getResources();
+                int id = res.getIdentifier(name, "drawable", context.getPackageName());
+
+                if (id > 0) {
+                    BitmapDrawable result = (BitmapDrawable) res.getDrawable(id);
+                    return result.getBitmap();
+                }
+
+                return null;
+            }
+
+            protected void onPostExecute(final Bitmap result) {
+                if (result != null) {
+                    this.callback.onComplete(result, this.requestId);
+                } else {
+                    this.callback.onError("LoadImageFromResourceTask returns no result.", this.requestId);
+                }
+            }
+        }
+
+        static class LoadImageFromFileTask {
+            private CompleteCallback callback;
+            private int requestId;
+
+            public LoadImageFromFileTask(int requestId, CompleteCallback callback) {
+                this.callback = callback;
+                this.requestId = requestId;
+            }
+
+            protected Bitmap doInBackground(String... params) {
+                String fileName = params[0];
+                return BitmapFactory.decodeFile(fileName);
+            }
+
+            protected void onPostExecute(final Bitmap result) {
+                if (result != null) {
+                    this.callback.onComplete(result, this.requestId);
+                } else {
+                    this.callback.onError("LoadImageFromFileTask returns no result.", this.requestId);
+                }
+            }
+        }
+
+        static class LoadImageFromBase64StringTask {
+            private CompleteCallback callback;
+            private int requestId;
+
+            public LoadImageFromBase64StringTask(int requestId, CompleteCallback callback) {
+                this.callback = callback;
+                this.requestId = requestId;
+            }
+
+            protected Bitmap doInBackground(String... params) {
+                String source = params[0];
+                byte[] bytes = Base64.decode(source, Base64.DEFAULT);
+                return BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+            }
+
+            protected void onPostExecute(final Bitmap result) {
+                if (result != null) {
+                    this.callback.onComplete(result, this.requestId);
+                } else {
+                    this.callback.onError("LoadImageFromBase64StringTask returns no result.", this.requestId);
+                }
+            }
+        }
+    }
+
+    public static class Http {
+        private static final String DELETE_METHOD = "DELETE";
+        private static final String GET_METHOD = "GET";
+        private static final String HEAD_METHOD = "HEAD";
+        private static CookieManager cookieManager;
+        private static volatile Transport transport;
+
+        /*
+         * Opens the connections used by MakeRequest and by the image Fetcher downloads.
+         * release must be called for every opened connection; reusable is true when the
+         * response body was fully consumed and closed, so the socket can go back to the keep-alive pool.
+         */
+        public interface Transport {
+            HttpURLConnection openConnection(URL url) throws IOException;
+
+            void release(HttpURLConnection connection, boolean reusable);
+        }
+
+        /*
+         * Lets a transport that waits for a free connection give up once the request is cancelled
+         * or its deadline has passed.
+         */
+        public interface ConnectionWait {
+            // Returns false when the caller no longer needs the connection.
+            boolean shouldWait();
+        }
+
+        /*
+         * Opens a connection through transport, waiting only as long as wait allows when the transport supports it.
+         */
+        static HttpURLConnection openConnection(Transport transport, URL url, ConnectionWait wait) throws IOException {
+            if (transport instanceof KeepAliveTransport) {
+                return ((KeepAliveTransport) transport).openConnection(url, wait);
+            }
+
+            return transport.openConnection(url);
+        }
+
+        public static Transport getTransport() {
+            if (transport == null) {
+                synchronized (Http.class) {
+                    if (transport == null) {
+                        transport = new KeepAliveTransport(KeepAliveTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST);
+                    }
+                }
+            }
+
+            return transport;
+        }
+
+        public static void setTransport(Transport value) {
+            transport = value;
+        }
+
+        /*
+         * Default transport on top of HttpURLConnection. Connections are not disconnected after
+         * a successful response, which leaves the socket in the platform keep-alive pool so the next
+         * request to the same host skips the TCP/TLS handshake. The number of concurrent connections
+         * per host is limited, so a burst of requests queues up on already warm sockets instead of
+         * opening new ones.
+         * NOTE: HttpURLConnection speaks HTTP/1.1 only, a multiplexing (HTTP/2) transport can be plugged in
+         * through Http.setTransport.
+         */
+        public static class KeepAliveTransport implements Transport {
+            public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 5;
+
+            private final int maxConnectionsPerHost;
+            private final HashMap<String, Semaphore> hostPermits = new HashMap<String, Semaphore>();
+            private final IdentityHashMap<HttpURLConnection, Semaphore> openConnections = new IdentityHashMap<HttpURLConnection, Semaphore>();
+
+            public KeepAliveTransport(int maxConnectionsPerHost) {
+                this.maxConnectionsPerHost = maxConnectionsPerHost;
+            }
+
+            @Override
+            public HttpURLConnection openConnection(URL url) throws IOException {
+                return this.openConnection(url, null);
+            }
+
+            public HttpURLConnection openConnection(URL url, ConnectionWait wait) throws IOException {
+                Semaphore permits = this.acquire(url, wait);
+                try {
+                    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                    if (permits != null) {
+                        synchronized (this.openConnections) {
+                            this.openConnections.put(connection, permits);
+                        }
+                    }
+                    return connection;
+                } catch (IOException e) {
+                    if (permits != null) {
+                        permits.release();
+                    }
+                    throw e;
+                }
+            }
+
+            @Override
+            public void release(HttpURLConnection connection, boolean reusable) {
+                if (connection == null) {
+                    return;
+                }
+
+                if (!reusable) {
+                    connection.disconnect();
+                }
+
+                Semaphore permits;
+                synchronized (this.openConnections) {
+                    permits = this.openConnections.remove(connection);
+                }
+                if (permits != null) {
+                    permits.release();
+                }
+            }
+
+            private Semaphore acquire(URL url, ConnectionWait wait) throws IOException {
+                if (this.maxConnectionsPerHost <= 0) {
+                    return null;
+                }
+
+                String host = url.getProtocol() + "://" + url.getHost() + ":" + url.getPort();
+                Semaphore permits;
+                synchronized (this.hostPermits) {
+                    permits = this.hostPermits.get(host);
+                    if (permits == null) {
+                        permits = new Semaphore(this.maxConnectionsPerHost, true);
+                        this.hostPermits.put(host, permits);
+                    }
+                }
+
+                // Wait in short steps, a slow host must not park the thread beyond the request's cancellation or deadline
+                try {
+                    while (!permits.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                        if (wait != null && !wait.shouldWait()) {
+                            throw new InterruptedIOException("Gave up waiting for a connection to " + url.getHost());
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a connection to " + url.getHost());
+                }
+
+                return permits;
+            }
+        }
+
+        private static final ConcurrentHashMap<String, SharedTask<?>> inFlightRequests = new ConcurrentHashMap<String, SharedTask<?>>();
+
+        /*
+         * Identical GET requests made while one of them is in flight share a single network request
+         * and receive the same RequestResult.
+         */
+        public static RequestHandle MakeRequest(final RequestOptions options, final CompleteCallback callback, final Object context) {
+            if (cookieManager == null) {
+                cookieManager = new CookieManager();
+                CookieHandler.setDefault(cookieManager);
+            }
+
+            final android.os.Handler mHandler = createHandler();
+            final CompleteCallback resultCallback = BatchDispatcher.wrap(callback);
+            final HttpRequestTask task = new HttpRequestTask(resultCallback, context, mHandler);
+            SharedTask<RequestResult> sharedTask = new SharedTask<RequestResult>(options.priority, inFlightRequests, options.getSharedRequestKey()) {
+                @Override
+                RequestResult doInBackground() {
+                    return task.doInBackground(options);
+                }
+
+                @Override
+                void deliver(RequestResult result, CompleteCallback callback, Object tag) {
+                    new HttpRequestTask(callback, tag).onPostExecute(result);
+                }
+
+                @Override
+                void abort() {
+                    task.cancel();
+                }
+
+                @Override
+                long retryDelay(RequestResult result) {
+                    return task.retryDelay(result, options);
+                }
+
+                @Override
+                RequestResult copyResult(RequestResult result) {
+                    return result.copy();
+                }
+            };
+
+            return SharedTask.submit(networkExecutor(), sharedTask, new Subscriber(resultCallback, context, mHandler));
+        }
+
+        private static final String RESPONSE_CACHE_DIR = "http-responses";
+        private static File responseCacheDir;
+        private static long responseCacheDiskSize;
+        private static int responseCacheMemorySize;
+        private static ResponseCache responseCache;
+
+        /*
+         * Enables caching of GET responses honoring Cache-Control, Expires, ETag and Last-Modified.
+         * The disk cache is opened lazily on the first request, so this is safe to call from the main thread.
+         */
+        public static synchronized void enableResponseCache(Context context, long maxDiskSize, int maxMemorySize) {
+            disableResponseCache();
+            responseCacheDir = Cache.getDiskCacheDir(context, RESPONSE_CACHE_DIR);
+            responseCacheDiskSize = maxDiskSize;
+            responseCacheMemorySize = maxMemorySize;
+        }
+
+        public static synchronized void disableResponseCache() {
+            if (responseCache != null) {
+                responseCache.close();
+                responseCache = null;
+            }
+            responseCacheDir = null;
+        }
+
+        public static synchronized void clearResponseCache() {
+            ResponseCache cache = getResponseCache();
+            if (cache != null) {
+                cache.clear();
+            }
+        }
+
+        static synchronized ResponseCache getResponseCache() {
+            if (responseCache == null && responseCacheDir != null) {
+                responseCache = new ResponseCache(responseCacheDir, responseCacheDiskSize, responseCacheMemorySize);
+            }
+
+            return responseCache;
+        }
+
+        static class ResponseCache {
+            private static final int APP_VERSION = 1;
+            private static final int METADATA_INDEX = 0;
+            private static final int BODY_INDEX = 1;
+
+            private final File directory;
+            private final long maxDiskSize;
+            private final int maxMemorySize;
+            private final LruCache<String, Entry> memoryCache;
+            private DiskLruCache diskCache;
+
+            ResponseCache(File directory, long maxDiskSize, int maxMemorySize) {
+                this.directory = directory;
+                this.maxDiskSize = maxDiskSize;
+                this.maxMemorySize = maxMemorySize;
+                this.memoryCache = new LruCache<String, Entry>(Math.max(maxMemorySize, 1)) {
+                    @Override
+                    protected int sizeOf(String key, Entry value) {
+                        return value.body.length + 1;
+                    }
+                };
+                this.openDiskCache();
+            }
+
+            private synchronized DiskLruCache openDiskCache() {
+                if (this.diskCache == null || this.diskCache.isClosed()) {
+                    this.diskCache = null;
+                    try {
+                        if (!this.directory.exists()) {
+                            this.directory.mkdirs();
+                        }
+                        this.diskCache = DiskLruCache.open(this.directory, APP_VERSION, 2, this.maxDiskSize);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Failed to open response cache, IOException: " + e.getMessage());
+                    }
+                }
+
+                return this.diskCache;
+            }
+
+            Entry get(String key, String url) {
+                Entry entry = this.memoryCache.get(key);
+                if (entry != null) {
+                    return entry;
+                }
+
+                DiskLruCache disk = this.openDiskCache();
+                if (disk == null) {
+                    return null;
+                }
+
+                DiskLruCache.Snapshot snapshot = null;
+                try {
+                    snapshot = disk.get(Cache.hashKeyForDisk(key));
+                    if (snapshot == null) {
+                        return null;
+                    }
+
+                    entry = Entry.fromMetadata(snapshot.getString(METADATA_INDEX));
+                    if (entry == null || !url.equals(entry.url)) {
+                        return null;
+                    }
+
+                    ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    InputStream in = snapshot.getInputStream(BODY_INDEX);
+                    byte[] buff = new byte[8192];
+                    int read;
+                    while ((read = in.read(buff, 0, buff.length)) != -1) {
+                        body.write(buff, 0, read);
+                    }
+                    entry.body = body.toByteArray();
+                    entry.key = key;
+
+                    this.putInMemory(entry);
+                    return entry;
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to read response cache, IOException: " + e.getMessage());
+                    return null;
+                } finally {
+                    if (snapshot != null) {
+                        snapshot.close();
+                    }
+                }
+            }
+
+            void put(String key, String url, RequestResult result) {
+                Entry entry = Entry.fromResponse(url, result);
+                if (entry != null) {
+                    entry.key = key;
+                    this.store(entry);
+                }
+            }
+
+            Entry revalidate(Entry cached, ArrayList<KeyValuePair> notModifiedHeaders) {
+                Entry entry = cached.update(notModifiedHeaders);
+                this.store(entry);
+                return entry;
+            }
+
+            void clear() {
+                this.memoryCache.evictAll();
+                synchronized (this) {
+                    if (this.diskCache != null) {
+                        try {
+                            this.diskCache.delete();
+                        } catch (IOException e) {
+                            Log.e(TAG, "Failed to clear response cache, IOException: " + e.getMessage());
+                        }
+                        this.diskCache = null;
+                    }
+                }
+            }
+
+            synchronized void close() {
+                this.memoryCache.evictAll();
+                if (this.diskCache != null) {
+                    try {
+                        this.diskCache.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Failed to close response cache, IOException: " + e.getMessage());
+                    }
+                    this.diskCache = null;
+                }
+            }
+
+            private void putInMemory(Entry entry) {
+                // large bodies would evict everything else, keep them on disk only
+                if (entry.body.length <= this.maxMemorySize / 8) {
+                    this.memoryCache.put(entry.key, entry);
+                } else {
+                    this.memoryCache.remove(entry.key);
+                }
+            }
+
+            private void store(Entry entry) {
+                this.putInMemory(entry);
+
+                DiskLruCache disk = this.openDiskCache();
+                if (disk == null) {
+                    return;
+                }
+
+                DiskLruCache.Editor editor = null;
+                try {
+                    editor = disk.edit(Cache.hashKeyForDisk(entry.key));
+                    if (editor == null) {
+                        // another thread is writing the same entry
+                        return;
+                    }
+
+                    editor.set(METADATA_INDEX, entry.toMetadata());
+                    OutputStream out = editor.newOutputStream(BODY_INDEX);
+                    out.write(entry.body);
+                    out.close();
+                    editor.commit();
+                    editor = null;
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to write response cache, IOException: " + e.getMessage());
+                } finally {
+                    if (editor != null) {
+                        try {
+                            editor.abort();
+                        } catch (IOException e) {
+                        }
+                    }
+                }
+            }
+
+            static boolean hasNoCache(String cacheControl) {
+                return cacheControl != null && cacheControl.toLowerCase(Locale.ENGLISH).contains("no-cache");
+            }
+
+            static class Entry {
+                // see RequestOptions.getCacheKey, not persisted, the disk entry is named after its hash
+                String key;
+                String url;
+                int statusCode;
+                String statusText;
+                long expiresAt;
+                ArrayList<KeyValuePair> headers = new ArrayList<KeyValuePair>();
+                byte[] body;
+
+                boolean isFresh() {
+                    return System.currentTimeMillis() < this.expiresAt;
+                }
+
+                String getHeader(String name) {
+                    for (KeyValuePair pair : this.headers) {
+                        if (name.equalsIgnoreCase(pair.key)) {
+                            return pair.value;
+                        }
+                    }
+                    return null;
+                }
+
+                void addValidators(HttpURLConnection connection) {
+                    String etag = this.getHeader("ETag");
+                    if (etag != null) {
+                        connection.setRequestProperty("If-None-Match", etag);
+                    }
+
+                    String lastModified = this.getHeader("Last-Modified");
+                    if (lastModified != null) {
+                        connection.setRequestProperty("If-Modified-Since", lastModified);
+                    }
+                }
+
+                void toResult(RequestResult result, RequestOptions options) {
+                    result.url = this.url;
+                    result.statusCode = this.statusCode;
+                    result.statusText = this.statusText;
+                    result.headers.addAll(this.headers);
+                    result.isFromCache = true;
+
+                    RequestResult.ByteArrayOutputStream2 raw = new RequestResult.ByteArrayOutputStream2(this.body.length);
+                    raw.write(this.body, 0, this.body.length);
+                    result.raw = raw;
+                    result.decodeResponse(this.getHeader("Content-Type"), options);
+                }
+
+                /*
+                 * Returns a copy of this entry with the headers of a 304 response applied.
+                 */
+                Entry update(ArrayList<KeyValuePair> notModifiedHeaders) {
+                    Entry entry = new Entry();
+                    entry.key = this.key;
+                    entry.url = this.url;
+                    entry.statusCode = this.statusCode;
+                    entry.statusText = this.statusText;
+                    entry.body = this.body;
+
+                    HashMap<String, Boolean> replaced = new HashMap<String, Boolean>();
+                    for (KeyValuePair pair : notModifiedHeaders) {
+                        if (pair.key != null) {
+                            replaced.put(pair.key.toLowerCase(Locale.ENGLISH), Boolean.TRUE);
+                        }
+                    }
+                    for (KeyValuePair pair : this.headers) {
+                        String key = pair.key.toLowerCase(Locale.ENGLISH);
+                        if (!replaced.containsKey(key) || isBodyHeader(key)) {
+                            entry.headers.add(pair);
+                        }
+                    }
+                    for (KeyValuePair pair : notModifiedHeaders) {
+                        // the stored body keeps the encoding and length it was cached with
+                        if (pair.key != null && !isBodyHeader(pair.key)) {
+                            entry.headers.add(pair);
+                        }
+                    }
+
+                    entry.expiresAt = computeExpiresAt(entry);
+                    return entry;
+                }
+
+                static Entry fromResponse(String url, RequestResult result) {
+                    Entry entry = new Entry();
+                    entry.url = url;
+                    entry.statusCode = result.statusCode;
+                    entry.statusText = result.statusText;
+                    for (KeyValuePair pair : result.headers) {
+                        // the status line is reported with null key
+                        if (pair.key != null) {
+                            entry.headers.add(pair);
+                        }
+                    }
+                    removeDecodedEncoding(entry);
+
+                    String cacheControl = entry.getHeader("Cache-Control");
+                    if (cacheControl != null && cacheControl.toLowerCase(Locale.ENGLISH).contains("no-store")) {
+                        return null;
+                    }
+
+                    // the cache is keyed by url only, so responses that vary by request headers are not stored
+                    String vary = entry.getHeader("Vary");
+                    if (vary != null && !vary.trim().equalsIgnoreCase("Accept-Encoding")) {
+                        return null;
+                    }
+
+                    entry.expiresAt = computeExpiresAt(entry);
+                    if (entry.expiresAt == 0 && entry.getHeader("ETag") == null && entry.getHeader("Last-Modified") == null) {
+                        // can be neither served fresh nor revalidated
+                        return null;
+                    }
+
+                    RequestResult.ByteArrayOutputStream2 raw = (RequestResult.ByteArrayOutputStream2) result.raw;
+                    entry.body = Arrays.copyOf(raw.buf(), raw.size());
+                    return entry;
+                }
+
+                /*
+                 * The body is stored after readResponseStream has unzipped it, so the headers describing
+                 * the compressed representation no longer apply and would make callers decode it twice.
+                 */
+                private static void removeDecodedEncoding(Entry entry) {
+                    String encoding = entry.getHeader("Content-Encoding");
+                    if (encoding == null || !encoding.toLowerCase(Locale.ENGLISH).contains("gzip")) {
+                        return;
+                    }
+
+                    for (int i = entry.headers.size() - 1; i >= 0; i--) {
+                        if (isBodyHeader(entry.headers.get(i).key)) {
+                            entry.headers.remove(i);
+                        }
+                    }
+                }
+
+                private static boolean isBodyHeader(String key) {
+                    return "Content-Encoding".equalsIgnoreCase(key) || "Content-Length".equalsIgnoreCase(key);
+                }
+
+                private static long computeExpiresAt(Entry entry) {
+                    long now = System.currentTimeMillis();
+                    String cacheControl = entry.getHeader("Cache-Control");
+                    if (cacheControl != null) {
+                        if (hasNoCache(cacheControl)) {
+                            return 0;
+                        }
+
+                        for (String directive : cacheControl.split(",")) {
+                            directive = directive.trim().toLowerCase(Locale.ENGLISH);
+                            if (directive.startsWith("max-age=")) {
+                                try {
+                                    long maxAge = Long.parseLong(directive.substring(8).trim());
+                                    long age = 0;
+                                    String ageHeader = entry.getHeader("Age");
+                                    if (ageHeader != null) {
+                                        age = Long.parseLong(ageHeader.trim());
+                                    }
+                                    return maxAge > age ? now + (maxAge - age) * 1000 : 0;
+                                } catch (NumberFormatException e) {
+                                    return 0;
+                                }
+                            }
+                        }
+                    }
+
+                    long expires = parseHttpDate(entry.getHeader("Expires"));
+                    if (expires > 0) {
+                        long date = parseHttpDate(entry.getHeader("Date"));
+                        long freshness = expires - (date > 0 ? date : now);
+                        return freshness > 0 ? now + freshness : 0;
+                    }
+
+                    return 0;
+                }
+
+                private static long parseHttpDate(String value) {
+                    if (value == null) {
+                        return 0;
+                    }
+
+                    SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+                    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+                    try {
+                        return format.parse(value.trim()).getTime();
+                    } catch (ParseException e) {
+                        return 0;
+                    }
+                }
+
+                String toMetadata() {
+                    StringBuilder sb = new StringBuilder();
+                    sb.append(this.url).append('\n');
+                    sb.append(this.statusCode).append('\n');
+                    sb.append(this.statusText != null ? this.statusText : "").append('\n');
+                    sb.append(this.expiresAt).append('\n');
+                    sb.append(this.headers.size()).append('\n');
+                    for (KeyValuePair pair : this.headers) {
+                        sb.append(pair.key).append('\n');
+                        sb.append(pair.value).append('\n');
+                    }
+                    return sb.toString();
+                }
+
+                static Entry fromMetadata(String metadata) {
+                    String[] lines = metadata.split("\n", -1);
+                    try {
+                        Entry entry = new Entry();
+                        entry.url = lines[0];
+                        entry.statusCode = Integer.parseInt(lines[1]);
+                        entry.statusText = lines[2];
+                        entry.expiresAt = Long.parseLong(lines[3]);
+                        int count = Integer.parseInt(lines[4]);
+                        for (int i = 0; i < count; i++) {
+                            entry.headers.add(new KeyValuePair(lines[5 + i * 2], lines[6 + i * 2]));
+                        }
+
+                        // entries written before the headers were rewritten on store
+                        removeDecodedEncoding(entry);
+                        return entry;
+                    } catch (RuntimeException e) {
+                        // NumberFormatException or ArrayIndexOutOfBoundsException for a corrupted entry
+                        return null;
+                    }
                 }
             }
         }
 
-        static class LoadImageFromFileTask {
-            private CompleteCallback callback;
-            private int requestId;
+        /*
+         * Receives the response body in chunks when RequestOptions.responseChunkCallback is set.
+         * The chunk buffer is reused once onChunk returns, so copy the bytes if they are needed later.
+         * Chunks are delivered on the thread that called MakeRequest, before CompleteCallback.onComplete.
+         */
+        public interface ResponseChunkCallback {
+            void onChunk(byte[] chunk, int length);
+        }
 
-            public LoadImageFromFileTask(int requestId, CompleteCallback callback) {
-                this.callback = callback;
-                this.requestId = requestId;
-            }
+        /*
+         * Converts a buffered response body into RequestResult.responseAsString/responseAsImage.
+         * Decoders are selected by the Content-Type of the response, see registerResponseDecoder.
+         */
+        public interface ResponseDecoder {
+            void decode(RequestResult result, RequestResult.ByteArrayOutputStream2 body, Charset charset, RequestOptions options);
+        }
 
-            protected Bitmap doInBackground(String... params) {
-                String fileName = params[0];
-                return BitmapFactory.decodeFile(fileName);
+        static final ResponseDecoder IMAGE_DECODER = new ResponseDecoder() {
+            @Override
+            public void decode(RequestResult result, RequestResult.ByteArrayOutputStream2 body, Charset charset, RequestOptions options) {
+                result.decodeImage(body, options);
+                if (result.responseAsImage == null) {
+                    result.decodeString(body, charset);
+                }
             }
+        };
 
-            protected void onPostExecute(final Bitmap result) {
-                if (result != null) {
-                    this.callback.onComplete(result, this.requestId);
-                } else {
-                    this.callback.onError("LoadImageFromFileTask returns no result.", this.requestId);
+        static final ResponseDecoder TEXT_DECODER = new ResponseDecoder() {
+            @Override
+            public void decode(RequestResult result, RequestResult.ByteArrayOutputStream2 body, Charset charset, RequestOptions options) {
+                result.decodeString(body, charset);
+            }
+        };
+
+        static final ResponseDecoder BINARY_DECODER = new ResponseDecoder() {
+            @Override
+            public void decode(RequestResult result, RequestResult.ByteArrayOutputStream2 body, Charset charset, RequestOptions options) {
+                // Skips the image probe, the string is still filled since JavaScript reads content.toString()
+                // unless the caller asked for the raw bytes only.
+                if (!options.rawBinaryResponse) {
+                    result.decodeString(body, charset);
                 }
             }
+        };
+
+        // Used when the response has no (or an unknown) Content-Type, we have no way to know
+        // whether the content is an image so we try to decode it as one.
+        static final ResponseDecoder DEFAULT_DECODER = IMAGE_DECODER;
+
+        private static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+        private static final ConcurrentHashMap<String, ResponseDecoder> responseDecoders = new ConcurrentHashMap<String, ResponseDecoder>();
+
+        static {
+            responseDecoders.put("image/*", IMAGE_DECODER);
+            responseDecoders.put("text/*", TEXT_DECODER);
+            responseDecoders.put("application/json", TEXT_DECODER);
+            responseDecoders.put("application/javascript", TEXT_DECODER);
+            responseDecoders.put("application/xml", TEXT_DECODER);
+            responseDecoders.put("application/x-www-form-urlencoded", TEXT_DECODER);
+            responseDecoders.put("application/octet-stream", BINARY_DECODER);
+            responseDecoders.put("audio/*", BINARY_DECODER);
+            responseDecoders.put("video/*", BINARY_DECODER);
         }
 
-        static class LoadImageFromBase64StringTask {
-            private CompleteCallback callback;
-            private int requestId;
-
-            public LoadImageFromBase64StringTask(int requestId, CompleteCallback callback) {
-                this.callback = callback;
-                this.requestId = requestId;
+        /*
+         * Registers a decoder for a mime type (e.g. "application/pdf") or for a whole type (e.g. "font/*").
+         * Passing null decoder removes the registration.
+         */
+        public static void registerResponseDecoder(String mimeType, ResponseDecoder decoder) {
+            String key = mimeType.trim().toLowerCase(Locale.ENGLISH);
+            if (decoder == null) {
+                responseDecoders.remove(key);
+            } else {
+                responseDecoders.put(key, decoder);
             }
+        }
 
-            protected Bitmap doInBackground(String... params) {
-                String source = params[0];
-                byte[] bytes = Base64.decode(source, Base64.DEFAULT);
-                return BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+        static ResponseDecoder getResponseDecoder(String contentType) {
+            if (contentType == null) {
+                return DEFAULT_DECODER;
             }
 
-            protected void onPostExecute(final Bitmap result) {
-                if (result != null) {
-                    this.callback.onComplete(result, this.requestId);
-                } else {
-                    this.callback.onError("LoadImageFromBase64StringTask returns no result.", this.requestId);
-                }
+            int paramsIndex = contentType.indexOf(';');
+            String mimeType = (paramsIndex >= 0 ? contentType.substring(0, paramsIndex) : contentType).trim().toLowerCase(Locale.ENGLISH);
+
+            ResponseDecoder decoder = responseDecoders.get(mimeType);
+            if (decoder != null) {
+                return decoder;
             }
-        }
-    }
 
-    public static class Http {
-        private static final String DELETE_METHOD = "DELETE";
-        private static final String GET_METHOD = "GET";
-        private static final String HEAD_METHOD = "HEAD";
-        private static CookieManager cookieManager;
+            // structured syntax suffixes, e.g. application/vnd.api+json
+            if (mimeType.endsWith("+json")) {
+                decoder = responseDecoders.get("application/json");
+            } else if (mimeType.endsWith("+xml")) {
+                decoder = responseDecoders.get("application/xml");
+            }
+            if (decoder != null) {
+                return decoder;
+            }
 
-        public static void MakeRequest(final RequestOptions options, final CompleteCallback callback, final Object context) {
-            if (cookieManager == null) {
-                cookieManager = new CookieManager();
-                CookieHandler.setDefault(cookieManager);
+            int slashIndex = mimeType.indexOf('/');
+            if (slashIndex > 0) {
+                decoder = responseDecoders.get(mimeType.substring(0, slashIndex) + "/*");
             }
 
-            final android.os.Handler mHandler = new android.os.Handler();
-            threadPoolExecutor().execute(new Runnable() {
-                @Override
-                public void run() {
-                    final HttpRequestTask task = new HttpRequestTask(callback, context);
-                    final RequestResult result = task.doInBackground(options);
-                    mHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            task.onPostExecute(result);
+            return decoder != null ? decoder : DEFAULT_DECODER;
+        }
+
+        static Charset getCharset(String contentType) {
+            if (contentType != null) {
+                for (String param : contentType.split(";")) {
+                    param = param.trim();
+                    if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+                        String name = param.substring(8).trim();
+                        if (name.length() > 1 && name.startsWith("\"") && name.endsWith("\"")) {
+                            name = name.substring(1, name.length() - 1);
                         }
-                    });
+
+                        try {
+                            return Charset.forName(name);
+                        } catch (IllegalArgumentException e) {
+                            // IllegalCharsetNameException and UnsupportedCharsetException
+                            Log.w(TAG, "Unsupported response charset: " + name);
+                        }
+                    }
                 }
-            });
+            }
+
+            return DEFAULT_CHARSET;
         }
 
         public static class KeyValuePair {
@@ -324,9 +1925,123 @@ public class Async {
             public ArrayList<KeyValuePair> headers;
             public String content;
             public int timeout = -1;
+
+            // Maximum time to wait for data once connected. Negative uses timeout, or DEFAULT_READ_TIMEOUT
+            // when that is not set either, 0 waits indefinitely.
+            public int readTimeout = -1;
+
+            // Maximum total time of the request including retries, the request fails with
+            // SocketTimeoutException once it is exceeded.
+            public int deadline = -1;
+
+            // Failed attempts of idempotent requests (timeouts, refused or reset connections and 5xx responses)
+            // are retried after retryBackoff, doubled on every next attempt.
+            public int maxRetries = 0;
+            public int retryBackoff = 1000;
             public int screenWidth = -1;
             public int screenHeight = -1;
             public boolean dontFollowRedirects = false;
+            public int priority = PRIORITY_NORMAL;
+            public boolean dontUseCache = false;
+
+            // When set, octet-stream, audio and video responses are only available through RequestResult.raw
+            // and responseAsString stays null, which saves a string copy of large binary bodies.
+            public boolean rawBinaryResponse = false;
+
+            // When set, the response body is written to this file instead of being kept in memory.
+            public String responseFilePath;
+
+            // When set, the response body is delivered through this callback instead of being kept in memory.
+            public ResponseChunkCallback responseChunkCallback;
+            public int responseChunkSize = 64 * 1024;
+
+            // Request bodies that are streamed to the connection as they are, without a JavaScript string round-trip.
+            // Only one of content, contentBytes, contentBuffer and contentFilePath is used, in that order.
+            public byte[] contentBytes;
+            public ByteBuffer contentBuffer;
+            public String contentFilePath;
+
+            // By default byte, buffer and file bodies are streamed with a fixed Content-Length and string bodies
+            // are buffered. Set this to stream any body, including content, in chunks instead.
+            public boolean useChunkedStreaming = false;
+
+            int getReadTimeout() {
+                if (this.readTimeout >= 0) {
+                    return this.readTimeout;
+                }
+
+                return this.timeout > 0 ? this.timeout : DEFAULT_READ_TIMEOUT;
+            }
+
+            boolean hasContent() {
+                return this.content != null || this.contentBytes != null || this.contentBuffer != null || this.contentFilePath != null;
+            }
+
+            /*
+             * Only requests without side effects and with an in-memory response can be shared.
+             */
+            String getSharedRequestKey() {
+                if (this.url == null || (this.method != null && !this.method.equalsIgnoreCase(GET_METHOD))
+                        || this.hasContent() || this.responseFilePath != null || this.responseChunkCallback != null) {
+                    return null;
+                }
+
+                StringBuilder key = new StringBuilder(this.url);
+                key.append('\n').append(this.screenWidth).append('x').append(this.screenHeight);
+                key.append('\n').append(this.dontFollowRedirects);
+                key.append('\n').append(this.rawBinaryResponse);
+                if (this.headers != null) {
+                    for (KeyValuePair pair : this.headers) {
+                        key.append('\n').append(pair.key).append(": ").append(pair.value);
+                    }
+                }
+
+                return key.toString();
+            }
+
+            /*
+             * Only plain GET requests are served from the response cache. Requests carrying their own
+             * conditional headers are left to the caller, authorized requests are never cached so one
+             * user's response cannot be served for another's credentials.
+             */
+            boolean isCacheable() {
+                return !this.dontUseCache && this.url != null && (this.method == null || this.method.equalsIgnoreCase(GET_METHOD))
+                        && !this.hasContent() && this.responseFilePath == null && this.responseChunkCallback == null
+                        && this.getHeader("If-None-Match") == null && this.getHeader("If-Modified-Since") == null
+                        && this.getHeader("Authorization") == null;
+            }
+
+            /*
+             * The response cache is keyed by the url and the request headers that usually select a different
+             * representation of it, so e.g. a JSON and an HTML response of the same url are kept apart.
+             */
+            String getCacheKey() {
+                String accept = this.getHeader("Accept");
+                String acceptLanguage = this.getHeader("Accept-Language");
+                if (accept == null && acceptLanguage == null) {
+                    return this.url;
+                }
+
+                StringBuilder key = new StringBuilder(this.url);
+                if (accept != null) {
+                    key.append("\nAccept: ").append(accept);
+                }
+                if (acceptLanguage != null) {
+                    key.append("\nAccept-Language: ").append(acceptLanguage);
+                }
+                return key.toString();
+            }
+
+            String getHeader(String name) {
+                if (this.headers != null) {
+                    for (KeyValuePair pair : this.headers) {
+                        if (name.equalsIgnoreCase(pair.key)) {
+                            return pair.value;
+                        }
+                    }
+                }
+                return null;
+            }
 
             public void addHeaders(HttpURLConnection connection) {
                 if (this.headers == null) {
@@ -349,17 +2064,78 @@ public class Async {
             }
 
             public void writeContent(HttpURLConnection connection, Stack<Closeable> openedStreams) throws IOException {
-                if (this.content == null || this.content.getClass() != String.class) {
+                if (this.content != null) {
+                    // A streamed body cannot be sent again, keep string bodies buffered unless asked otherwise so
+                    // HttpURLConnection can still follow redirects and answer 401/407 challenges with them.
+                    byte[] bytes = this.content.getBytes(DEFAULT_CHARSET);
+                    this.writeBytes(connection, openedStreams, bytes, 0, bytes.length, this.useChunkedStreaming);
+                } else if (this.contentBytes != null) {
+                    this.writeBytes(connection, openedStreams, this.contentBytes, 0, this.contentBytes.length, true);
+                } else if (this.contentBuffer != null) {
+                    this.writeBuffer(connection, openedStreams, this.contentBuffer);
+                } else if (this.contentFilePath != null) {
+                    this.writeFile(connection, openedStreams, new File(this.contentFilePath));
+                }
+            }
+
+            private void setStreamingMode(HttpURLConnection connection, long length) {
+                // Without a streaming mode HttpURLConnection buffers the whole body in memory
+                // to compute the Content-Length.
+                if (this.useChunkedStreaming) {
+                    connection.setChunkedStreamingMode(0);
+                } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                    connection.setFixedLengthStreamingMode(length);
+                } else if (length <= Integer.MAX_VALUE) {
+                    connection.setFixedLengthStreamingMode((int) length);
+                } else {
+                    connection.setChunkedStreamingMode(0);
+                }
+            }
+
+            private void writeBytes(HttpURLConnection connection, Stack<Closeable> openedStreams, byte[] bytes, int offset, int length, boolean streaming) throws IOException {
+                if (streaming) {
+                    this.setStreamingMode(connection, length);
+                }
+
+                OutputStream outStream = connection.getOutputStream();
+                openedStreams.push(outStream);
+
+                outStream.write(bytes, offset, length);
+            }
+
+            private void writeBuffer(HttpURLConnection connection, Stack<Closeable> openedStreams, ByteBuffer buffer) throws IOException {
+                // do not move the position of the caller's buffer
+                buffer = buffer.duplicate();
+                if (buffer.hasArray()) {
+                    this.writeBytes(connection, openedStreams, buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), true);
                     return;
                 }
 
+                this.setStreamingMode(connection, buffer.remaining());
+
                 OutputStream outStream = connection.getOutputStream();
                 openedStreams.push(outStream);
 
-                OutputStreamWriter writer = new OutputStreamWriter(outStream);
-                openedStreams.push(writer);
+                WritableByteChannel channel = Channels.newChannel(outStream);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+
+            private void writeFile(HttpURLConnection connection, Stack<Closeable> openedStreams, File file) throws IOException {
+                FileInputStream inStream = new FileInputStream(file);
+                openedStreams.push(inStream);
+
+                this.setStreamingMode(connection, file.length());
+
+                OutputStream outStream = connection.getOutputStream();
+                openedStreams.push(outStream);
 
-                writer.write((String) this.content);
+                byte[] buff = new byte[64 * 1024];
+                int read;
+                while ((read = inStream.read(buff, 0, buff.length)) != -1) {
+                    outStream.write(buff, 0, read);
+                }
             }
         }
 
@@ -372,6 +2148,41 @@ public class Async {
             public Exception error;
             public String url;
             public String statusText;
+            public boolean isFromCache;
+
+            // set on cancel or deadline so a reader waiting for a free chunk buffer can bail out
+            volatile boolean cancelled;
+
+            /*
+             * Copies the headers and the body, so each subscriber of a shared request can modify its own result.
+             */
+            RequestResult copy() {
+                RequestResult copy = new RequestResult();
+                for (KeyValuePair header : this.headers) {
+                    copy.headers.add(new KeyValuePair(header.key, header.value));
+                }
+
+                if (this.raw instanceof ByteArrayOutputStream2) {
+                    ByteArrayOutputStream2 raw = (ByteArrayOutputStream2) this.raw;
+                    ByteArrayOutputStream2 rawCopy = new ByteArrayOutputStream2(raw.size());
+                    rawCopy.write(raw.buf(), 0, raw.size());
+                    copy.raw = rawCopy;
+                } else if (this.raw != null) {
+                    byte[] bytes = this.raw.toByteArray();
+                    ByteArrayOutputStream2 rawCopy = new ByteArrayOutputStream2(bytes.length);
+                    rawCopy.write(bytes, 0, bytes.length);
+                    copy.raw = rawCopy;
+                }
+
+                copy.statusCode = this.statusCode;
+                copy.responseAsString = this.responseAsString;
+                copy.responseAsImage = this.responseAsImage;
+                copy.error = this.error;
+                copy.url = this.url;
+                copy.statusText = this.statusText;
+                copy.isFromCache = this.isFromCache;
+                return copy;
+            }
 
             public void getHeaders(HttpURLConnection connection) {
                 Map<String, List<String>> headers = connection.getHeaderFields();
@@ -394,6 +2205,10 @@ public class Async {
             }
 
             public void readResponseStream(HttpURLConnection connection, Stack<Closeable> openedStreams, RequestOptions options) throws IOException {
+                this.readResponseStream(connection, openedStreams, options, null);
+            }
+
+            public void readResponseStream(HttpURLConnection connection, Stack<Closeable> openedStreams, RequestOptions options, android.os.Handler handler) throws IOException {
                 int contentLength = connection.getContentLength();
 
                 InputStream inStream =
@@ -409,6 +2224,7 @@ public class Async {
 
                 // In the event we don't have a null stream, and we have gzip as part of the encoding
                 // then we will use gzip to decode the stream
+                InputStream rawStream = inStream;
                 String encodingHeader = connection.getHeaderField("Content-Encoding");
                 if (encodingHeader != null && encodingHeader.toLowerCase().contains("gzip")) {
                     inStream = new GZIPInputStream(inStream);
@@ -416,6 +2232,16 @@ public class Async {
 
                 openedStreams.push(inStream);
 
+                if (options.responseFilePath != null) {
+                    this.writeResponseToFile(inStream, openedStreams, options.responseFilePath);
+                    return;
+                }
+
+                if (options.responseChunkCallback != null) {
+                    this.deliverResponseChunks(inStream, rawStream, options, handler);
+                    return;
+                }
+
                 BufferedInputStream buffer = new BufferedInputStream(inStream, 4096);
                 openedStreams.push(buffer);
 
@@ -431,10 +2257,17 @@ public class Async {
                 this.raw = responseStream;
                 buff = null;
 
+                this.decodeResponse(connection.getContentType(), options);
+            }
+
+            void decodeResponse(String contentType, RequestOptions options) {
                 // make the byte array conversion here, not in the JavaScript
                 // world for better performance
-                // since we do not have some explicit way to determine whether
-                // the content-type is image
+                ResponseDecoder decoder = getResponseDecoder(contentType);
+                decoder.decode(this, (ByteArrayOutputStream2) this.raw, getCharset(contentType), options);
+            }
+
+            void decodeImage(ByteArrayOutputStream2 responseStream, RequestOptions options) {
                 try {
                     // TODO: Generally this approach will not work for very
                     // large files
@@ -467,11 +2300,124 @@ public class Async {
                 } catch (Exception e) {
                     Log.e(TAG, "Failed to decode byte array, Exception: " + e.getMessage());
                 }
+            }
+
+            void decodeString(ByteArrayOutputStream2 responseStream, Charset charset) {
+                this.responseAsString = new String(responseStream.buf(), 0, responseStream.size(), charset);
+            }
+
+            private void writeResponseToFile(InputStream inStream, Stack<Closeable> openedStreams, String filePath) throws IOException {
+                File file = new File(filePath);
+                File parent = file.getParentFile();
+                if (parent != null && !parent.exists()) {
+                    parent.mkdirs();
+                }
+
+                FileOutputStream outStream = new FileOutputStream(file);
+                openedStreams.push(outStream);
+
+                byte[] buff = new byte[8192];
+                int read;
+                while ((read = inStream.read(buff, 0, buff.length)) != -1) {
+                    outStream.write(buff, 0, read);
+                }
+                outStream.flush();
+            }
+
+            private void deliverResponseChunks(InputStream inStream, InputStream rawStream, RequestOptions options, android.os.Handler handler) throws IOException {
+                final ResponseChunkCallback chunkCallback = options.responseChunkCallback;
+                final int chunkSize = options.responseChunkSize > 0 ? options.responseChunkSize : 64 * 1024;
+                if (handler == null) {
+                    handler = new android.os.Handler(Looper.getMainLooper());
+                }
+
+                // a consumer that does not release a buffer within the read timeout is treated like a stalled read
+                final int stallTimeout = options.getReadTimeout();
+
+                // Two buffers are enough to keep reading while the previous chunk is being consumed.
+                // The reader waits until a buffer is released, so a slow consumer throttles the download
+                // instead of growing the heap.
+                final byte[][] buffers = new byte[][]{new byte[chunkSize], new byte[chunkSize]};
+                final Semaphore freeBuffers = new Semaphore(buffers.length);
+                int index = 0;
+
+                try {
+                    while (true) {
+                        this.acquireBuffers(freeBuffers, 1, stallTimeout);
+                        final byte[] chunk = buffers[index];
+                        final int length = readAvailable(inStream, rawStream, chunk);
+                        if (length <= 0) {
+                            freeBuffers.release();
+                            break;
+                        }
+
+                        handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    chunkCallback.onChunk(chunk, length);
+                                } finally {
+                                    freeBuffers.release();
+                                }
+                            }
+                        });
+
+                        index = (index + 1) % buffers.length;
+                    }
+
+                    // Wait for the last chunks to be consumed before the buffers go out of scope.
+                    this.acquireBuffers(freeBuffers, buffers.length, stallTimeout);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Response streaming interrupted.");
+                }
+            }
+
+            private void acquireBuffers(Semaphore freeBuffers, int permits, int stallTimeout) throws IOException, InterruptedException {
+                long waited = 0;
+                while (!freeBuffers.tryAcquire(permits, 100, TimeUnit.MILLISECONDS)) {
+                    if (this.cancelled) {
+                        throw new InterruptedIOException(CANCELLED_ERROR);
+                    }
+
+                    waited += 100;
+                    if (stallTimeout > 0 && waited >= stallTimeout) {
+                        throw new InterruptedIOException("Response chunk consumer stalled.");
+                    }
+                }
+            }
+
+            // A partial chunk is delivered early only once it is worth a main thread post.
+            private static final int MIN_PARTIAL_CHUNK_SIZE = 8 * 1024;
+            private static final long PARTIAL_CHUNK_DELAY = 100;
+
+            /**
+             * Fills the chunk until it is full or the stream ends. When the connection has no more bytes ready
+             * the partial chunk is delivered if it holds at least MIN_PARTIAL_CHUNK_SIZE bytes or its first bytes
+             * arrived PARTIAL_CHUNK_DELAY ago, so a paused response is not held back while a slow or TLS stream,
+             * which has nothing ready after almost every read, is not split into many tiny chunks.
+             */
+            private static int readAvailable(InputStream inStream, InputStream rawStream, byte[] chunk) throws IOException {
+                final int minPartial = Math.min(MIN_PARTIAL_CHUNK_SIZE, chunk.length);
+                long firstReadAt = 0;
+                int total = 0;
+                while (total < chunk.length) {
+                    int read = inStream.read(chunk, total, chunk.length - total);
+                    if (read == -1) {
+                        break;
+                    }
+                    if (total == 0) {
+                        firstReadAt = SystemClock.uptimeMillis();
+                    }
+                    total += read;
 
-                if (this.responseAsImage == null) {
-                    // convert to string
-                    this.responseAsString = responseStream.toString();
+                    // GZIPInputStream.available() only reports end of stream, so ask the underlying connection
+                    if (rawStream.available() == 0
+                            && (total >= minPartial || SystemClock.uptimeMillis() - firstReadAt >= PARTIAL_CHUNK_DELAY)) {
+                        break;
+                    }
                 }
+                return total;
             }
 
             public static final class ByteArrayOutputStream2 extends ByteArrayOutputStream {
@@ -492,23 +2438,107 @@ public class Async {
             }
         }
 
-        static class HttpRequestTask {
+        static final String DEADLINE_ERROR = "The request deadline was exceeded.";
+
+        // Applied when neither RequestOptions.readTimeout nor RequestOptions.timeout is set.
+        static final int DEFAULT_READ_TIMEOUT = 60 * 1000;
+
+        private static final AtomicLong connectTimeouts = new AtomicLong();
+        private static final AtomicLong readTimeouts = new AtomicLong();
+        private static final AtomicLong deadlinesExceeded = new AtomicLong();
+        private static final AtomicLong retries = new AtomicLong();
+
+        public static class Metrics {
+            public long connectTimeouts;
+            public long readTimeouts;
+            public long deadlinesExceeded;
+            public long retries;
+        }
+
+        public static Metrics getMetrics() {
+            Metrics metrics = new Metrics();
+            metrics.connectTimeouts = connectTimeouts.get();
+            metrics.readTimeouts = readTimeouts.get();
+            metrics.deadlinesExceeded = deadlinesExceeded.get();
+            metrics.retries = retries.get();
+            return metrics;
+        }
+
+        public static void resetMetrics() {
+            connectTimeouts.set(0);
+            readTimeouts.set(0);
+            deadlinesExceeded.set(0);
+            retries.set(0);
+        }
+
+        static class HttpRequestTask implements ConnectionWait {
             private CompleteCallback callback;
             private Object context;
+            private android.os.Handler handler;
+            private volatile HttpURLConnection connection;
+            private volatile RequestResult result;
+            private volatile boolean cancelled;
+            private volatile boolean deadlineExceeded;
+            private long deadlineAt;
+            private int attempt;
 
             public HttpRequestTask(CompleteCallback callback, Object context) {
+                this(callback, context, null);
+            }
+
+            public HttpRequestTask(CompleteCallback callback, Object context, android.os.Handler handler) {
                 this.callback = callback;
                 this.context = context;
+                this.handler = handler;
             }
 
             protected RequestResult doInBackground(RequestOptions... params) {
                 RequestResult result = new RequestResult();
+                this.result = result;
+                this.connection = null;
+                if (this.cancelled) {
+                    result.cancelled = true;
+                }
                 Stack<Closeable> openedStreams = new Stack<Closeable>();
+                Transport transport = getTransport();
+                HttpURLConnection connection = null;
+                boolean reusable = false;
+                boolean connected = false;
+                ScheduledFuture<?> deadlineTimer = null;
 
                 try {
                     RequestOptions options = params[0];
+                    if (options.deadline > 0) {
+                        if (this.deadlineAt == 0) {
+                            this.deadlineAt = System.currentTimeMillis() + options.deadline;
+                        }
+
+                        long remaining = this.deadlineAt - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            this.deadlineExceeded = true;
+                            throw new SocketTimeoutException(DEADLINE_ERROR);
+                        }
+
+                        // started before the transport is asked for a connection, so waiting for a host permit counts too
+                        deadlineTimer = this.scheduleDeadline(remaining);
+                    }
+
+                    ResponseCache cache = options.isCacheable() ? getResponseCache() : null;
+                    ResponseCache.Entry cached = cache != null ? cache.get(options.getCacheKey(), options.url) : null;
+                    if (cached != null && cached.isFresh() && !ResponseCache.hasNoCache(options.getHeader("Cache-Control"))) {
+                        cached.toResult(result, options);
+                        return result;
+                    }
+
                     URL url = new URL(options.url);
-                    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                    connection = openConnection(transport, url, this);
+                    this.connection = connection;
+                    if (this.cancelled) {
+                        throw new InterruptedIOException(CANCELLED_ERROR);
+                    }
+                    if (this.deadlineExceeded) {
+                        throw new SocketTimeoutException(DEADLINE_ERROR);
+                    }
 
                     // set the request method
                     String requestMethod = options.method != null ? options.method.toUpperCase(Locale.ENGLISH) : GET_METHOD;
@@ -516,12 +2546,18 @@ public class Async {
 
                     // add the headers
                     options.addHeaders(connection);
+                    if (cached != null) {
+                        cached.addValidators(connection);
+                    }
 
                     // apply timeout
                     if (options.timeout > 0) {
                         connection.setConnectTimeout(options.timeout);
                     }
 
+                    // a stalled read would otherwise hold the pool thread indefinitely
+                    connection.setReadTimeout(options.getReadTimeout());
+
                     // don't follow redirect (30x) responses; by default, HttpURLConnection follows them.
                     if (options.dontFollowRedirects) {
                         connection.setInstanceFollowRedirects(false);
@@ -537,34 +2573,59 @@ public class Async {
                     this.closeOpenedStreams(openedStreams);
 
                     connection.connect();
+                    connected = true;
 
                     // build the result
                     result.getHeaders(connection);
                     result.url = options.url;
                     result.statusCode = connection.getResponseCode();
                     result.statusText = connection.getResponseMessage();
-                    if (!requestMethod.equals(HEAD_METHOD)) {
-                        result.readResponseStream(connection, openedStreams, options);
+
+                    if (cached != null && result.statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                        // the cached response is still valid
+                        cached = cache.revalidate(cached, result.headers);
+                        result.headers.clear();
+                        cached.toResult(result, options);
+                    } else if (!requestMethod.equals(HEAD_METHOD)) {
+                        result.readResponseStream(connection, openedStreams, options, this.handler);
+                        if (cache != null && result.statusCode == HttpURLConnection.HTTP_OK && result.raw != null) {
+                            cache.put(options.getCacheKey(), options.url, result);
+                        }
                     }
 
                     // close the opened streams (saves copy-paste implementation
                     // in each method that throws IOException)
                     this.closeOpenedStreams(openedStreams);
 
-                    connection.disconnect();
+                    // the response is fully consumed, keep the connection alive for reuse
+                    reusable = true;
 
                     return result;
                 } catch (Exception e) // TODO: Catch all exceptions?
                 {
-                    result.error = e;
+                    if (this.deadlineExceeded) {
+                        deadlinesExceeded.incrementAndGet();
+                        result.error = new SocketTimeoutException(DEADLINE_ERROR);
+                    } else {
+                        if (e instanceof SocketTimeoutException) {
+                            (connected ? readTimeouts : connectTimeouts).incrementAndGet();
+                        }
+                        result.error = e;
+                    }
 
                     return result;
                 } finally {
+                    if (deadlineTimer != null) {
+                        deadlineTimer.cancel(false);
+                    }
+
                     try {
                         this.closeOpenedStreams(openedStreams);
                     } catch (IOException e) {
                         Log.e(TAG, "Failed to close opened streams, IOException: " + e.getMessage());
                     }
+
+                    transport.release(connection, reusable);
                 }
             }
 
@@ -576,6 +2637,89 @@ public class Async {
                 }
             }
 
+            private ScheduledFuture<?> scheduleDeadline(long delay) {
+                return scheduler().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        deadlineExceeded = true;
+
+                        // also wakes a reader waiting for a chunk buffer
+                        RequestResult result = HttpRequestTask.this.result;
+                        if (result != null) {
+                            result.cancelled = true;
+                        }
+
+                        HttpURLConnection connection = HttpRequestTask.this.connection;
+                        if (connection != null) {
+                            connection.disconnect();
+                        }
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public boolean shouldWait() {
+                if (this.deadlineAt != 0 && System.currentTimeMillis() >= this.deadlineAt) {
+                    this.deadlineExceeded = true;
+                }
+
+                return !this.cancelled && !this.deadlineExceeded;
+            }
+
+            long retryDelay(RequestResult result, RequestOptions options) {
+                if (!isTransientFailure(result) || this.cancelled || this.deadlineExceeded || this.attempt >= options.maxRetries) {
+                    return -1;
+                }
+
+                // chunks that were already delivered cannot be taken back
+                if (options.responseChunkCallback != null) {
+                    return -1;
+                }
+
+                // do not repeat requests that may have side effects
+                String method = options.method != null ? options.method.toUpperCase(Locale.ENGLISH) : GET_METHOD;
+                if (!(method.equals(GET_METHOD) || method.equals(HEAD_METHOD) || method.equals(DELETE_METHOD) || method.equals("PUT") || method.equals("OPTIONS"))) {
+                    return -1;
+                }
+
+                long delay = Math.max(options.retryBackoff, 0) * (1L << Math.min(this.attempt, 16));
+                if (this.deadlineAt != 0 && System.currentTimeMillis() + delay >= this.deadlineAt) {
+                    return -1;
+                }
+
+                this.attempt++;
+                retries.incrementAndGet();
+                return delay;
+            }
+
+            /*
+             * Timeouts, dropped connections and server errors may succeed on the next attempt. Errors such as
+             * an unknown host, a malformed url or a 4xx response will fail the same way again.
+             */
+            private static boolean isTransientFailure(RequestResult result) {
+                if (result.error == null) {
+                    return result.statusCode >= 500 && result.statusCode < 600;
+                }
+
+                // SocketException covers refused and reset connections
+                return result.error instanceof SocketTimeoutException || result.error instanceof SocketException;
+            }
+
+            void cancel() {
+                this.cancelled = true;
+
+                RequestResult result = this.result;
+                if (result != null) {
+                    result.cancelled = true;
+                }
+
+                // disconnecting makes the pending connect/read in doInBackground fail
+                HttpURLConnection connection = this.connection;
+                if (connection != null) {
+                    connection.disconnect();
+                }
+            }
+
             private void closeOpenedStreams(Stack<Closeable> streams) throws IOException {
                 while (streams.size() > 0) {
                     Closeable stream = streams.pop();
@@ -70,13 +70,15 @@ public class CommonLayoutParams extends FrameLayout.LayoutParams {
     public float bottomMarginPercent = 0;
     public float rightMarginPercent = 0;
 
-    public int widthOriginal = NOT_SET;
-    public int heightOriginal = NOT_SET;
+    // Sizes and margins resolved from the percent values during the last measure. NOT_SET when the
+    // parent size was unspecified, the fields themselves are never changed for percent values.
+    private int computedWidth = NOT_SET;
+    private int computedHeight = NOT_SET;
 
-    public int topMarginOriginal = NOT_SET;
-    public int leftMarginOriginal = NOT_SET;
-    public int bottomMarginOriginal = NOT_SET;
-    public int rightMarginOriginal = NOT_SET;
+    private int computedTopMargin = NOT_SET;
+    private int computedLeftMargin = NOT_SET;
+    private int computedBottomMargin = NOT_SET;
+    private int computedRightMargin = NOT_SET;
 
     public int left = 0;
     public int top = 0;
@@ -86,14 +88,56 @@ public class CommonLayoutParams extends FrameLayout.LayoutParams {
     public int columnSpan = 1;
     public Dock dock = Dock.left;
 
+    // The last measure of the view done by measureChild. When the view didn't request layout and neither
+    // the parent specs nor the computed size, margins and gravity changed, the view is not measured again.
+    private boolean measureCacheValid;
+    private int cachedWidthMeasureSpec;
+    private int cachedHeightMeasureSpec;
+    private int cachedWidth;
+    private int cachedHeight;
+    private int cachedLeftMargin;
+    private int cachedTopMargin;
+    private int cachedRightMargin;
+    private int cachedBottomMargin;
+    private int cachedGravity;
+    private int cachedMeasuredWidthAndState;
+    private int cachedMeasuredHeightAndState;
+
+    /**
+     * Returns the width to measure and layout with: the one resolved from widthPercent if set, width otherwise.
+     */
+    public int getComputedWidth() {
+        return this.widthPercent > 0 && this.computedWidth != NOT_SET ? this.computedWidth : this.width;
+    }
+
+    public int getComputedHeight() {
+        return this.heightPercent > 0 && this.computedHeight != NOT_SET ? this.computedHeight : this.height;
+    }
+
+    public int getComputedLeftMargin() {
+        return this.leftMarginPercent > 0 && this.computedLeftMargin != NOT_SET ? this.computedLeftMargin : this.leftMargin;
+    }
+
+    public int getComputedTopMargin() {
+        return this.topMarginPercent > 0 && this.computedTopMargin != NOT_SET ? this.computedTopMargin : this.topMargin;
+    }
+
+    public int getComputedRightMargin() {
+        return this.rightMarginPercent > 0 && this.computedRightMargin != NOT_SET ? this.computedRightMargin : this.rightMargin;
+    }
+
+    public int getComputedBottomMargin() {
+        return this.bottomMarginPercent > 0 && this.computedBottomMargin != NOT_SET ? this.computedBottomMargin : this.bottomMargin;
+    }
+
     protected static int getDesiredWidth(View view) {
         CommonLayoutParams lp = (CommonLayoutParams) view.getLayoutParams();
-        return view.getMeasuredWidth() + lp.leftMargin + lp.rightMargin;
+        return view.getMeasuredWidth() + lp.getComputedLeftMargin() + lp.getComputedRightMargin();
     }
 
     protected static int getDesiredHeight(View view) {
         CommonLayoutParams lp = (CommonLayoutParams) view.getLayoutParams();
-        return view.getMeasuredHeight() + lp.topMargin + lp.bottomMargin;
+        return view.getMeasuredHeight() + lp.getComputedTopMargin() + lp.getComputedBottomMargin();
     }
 
     // We use our own layout method because the one in FrameLayout is broken when margins are set and gravity is CENTER_VERTICAL or CENTER_HORIZONTAL.
@@ -118,54 +162,54 @@ public class CommonLayoutParams extends FrameLayout.LayoutParams {
         int verticalGravity = gravity & Gravity.VERTICAL_GRAVITY_MASK;
 
         // If we have explicit height and gravity is FILL we need to be centered otherwise our explicit height won't be taken into account.
-        if ((lp.height >= 0 || lp.heightPercent > 0) && verticalGravity == Gravity.FILL_VERTICAL) {
+        if ((lp.getComputedHeight() >= 0 || lp.heightPercent > 0) && verticalGravity == Gravity.FILL_VERTICAL) {
             verticalGravity = Gravity.CENTER_VERTICAL;
         }
 
         switch (verticalGravity) {
             case Gravity.TOP:
-                childTop = top + lp.topMargin;
+                childTop = top + lp.getComputedTopMargin();
                 break;
 
             case Gravity.CENTER_VERTICAL:
-                childTop = top + (bottom - top - childHeight + lp.topMargin - lp.bottomMargin) / 2;
+                childTop = top + (bottom - top - childHeight + lp.getComputedTopMargin() - lp.getComputedBottomMargin()) / 2;
                 break;
 
             case Gravity.BOTTOM:
-                childTop = bottom - childHeight - lp.bottomMargin;
+                childTop = bottom - childHeight - lp.getComputedBottomMargin();
                 break;
 
             case Gravity.FILL_VERTICAL:
             default:
-                childTop = top + lp.topMargin;
-                childHeight = bottom - top - (lp.topMargin + lp.bottomMargin);
+                childTop = top + lp.getComputedTopMargin();
+                childHeight = bottom - top - (lp.getComputedTopMargin() + lp.getComputedBottomMargin());
                 break;
         }
 
         int horizontalGravity = Gravity.getAbsoluteGravity(gravity, child.getLayoutDirection()) & Gravity.HORIZONTAL_GRAVITY_MASK;
 
         // If we have explicit width and gravity is FILL we need to be centered otherwise our explicit width won't be taken into account.
-        if ((lp.width >= 0 || lp.widthPercent > 0) && horizontalGravity == Gravity.FILL_HORIZONTAL) {
+        if ((lp.getComputedWidth() >= 0 || lp.widthPercent > 0) && horizontalGravity == Gravity.FILL_HORIZONTAL) {
             horizontalGravity = Gravity.CENTER_HORIZONTAL;
         }
 
         switch (horizontalGravity) {
             case Gravity.LEFT:
-                childLeft = left + lp.leftMargin;
+                childLeft = left + lp.getComputedLeftMargin();
                 break;
 
             case Gravity.CENTER_HORIZONTAL:
-                childLeft = left + (right - left - childWidth + lp.leftMargin - lp.rightMargin) / 2;
+                childLeft = left + (right - left - childWidth + lp.getComputedLeftMargin() - lp.getComputedRightMargin()) / 2;
                 break;
 
             case Gravity.RIGHT:
-                childLeft = right - childWidth - lp.rightMargin;
+                childLeft = right - childWidth - lp.getComputedRightMargin();
                 break;
 
             case Gravity.FILL_HORIZONTAL:
             default:
-                childLeft = left + lp.leftMargin;
-                childWidth = right - left - (lp.leftMargin + lp.rightMargin);
+                childLeft = left + lp.getComputedLeftMargin();
+                childWidth = right - left - (lp.getComputedLeftMargin() + lp.getComputedRightMargin());
                 break;
         }
 
@@ -177,8 +221,8 @@ public class CommonLayoutParams extends FrameLayout.LayoutParams {
         // Re-measure TextView because it is not centered if layout width is larger than measure width.
         if (child instanceof android.widget.TextView) {
 
-            boolean canChangeWidth = lp.width < 0;
-            boolean canChangeHeight = lp.height < 0;
+            boolean canChangeWidth = lp.getComputedWidth() < 0;
+            boolean canChangeHeight = lp.getComputedHeight() < 0;
 
             int measuredWidth = child.getMeasuredWidth();
             int measuredHeight = child.getMeasuredHeight();
@@ -186,8 +230,8 @@ public class CommonLayoutParams extends FrameLayout.LayoutParams {
             int width = childRight - childLeft;
             int height = childBottom - childTop;
             if ((Math.abs(measuredWidth - width) > 1 && canChangeWidth) || (Math.abs(measuredHeight - height) > 1 && canChangeHeight)) {
-                int widthMeasureSpec = MeasureSpec.makeMeasureSpec(canChangeWidth ? width : lp.width, MeasureSpec.EXACTLY);
-                int heightMeasureSpec = MeasureSpec.makeMeasureSpec(canChangeHeight ? height : lp.height, MeasureSpec.EXACTLY);
+                int widthMeasureSpec = MeasureSpec.makeMeasureSpec(canChangeWidth ? width : lp.getComputedWidth(), MeasureSpec.EXACTLY);
+                int heightMeasureSpec = MeasureSpec.makeMeasureSpec(canChangeHeight ? height : lp.getComputedHeight(), MeasureSpec.EXACTLY);
                 if (debuggable > 0) {
                     sb.setLength(0);
                     sb.append("remeasure ");
@@ -244,6 +288,14 @@ public class CommonLayoutParams extends FrameLayout.LayoutParams {
             }
         }
 
+        CommonLayoutParams lp = (CommonLayoutParams) child.getLayoutParams();
+        if (lp.isMeasureCacheHit(child, widthMeasureSpec, heightMeasureSpec)) {
+            LayoutBase.measureCacheHits++;
+            return;
+        }
+
+        LayoutBase.measureCacheMisses++;
+
         int childWidthMeasureSpec = getMeasureSpec(child, widthMeasureSpec, true);
         int childHeightMeasureSpec = getMeasureSpec(child, heightMeasureSpec, false);
 
@@ -260,11 +312,46 @@ public class CommonLayoutParams extends FrameLayout.LayoutParams {
         }
 
         child.measure(childWidthMeasureSpec, childHeightMeasureSpec);
+        lp.updateMeasureCache(child, widthMeasureSpec, heightMeasureSpec);
+    }
+
+    private boolean isMeasureCacheHit(View child, int widthMeasureSpec, int heightMeasureSpec) {
+        // A view that requested layout, or was measured with other specs since (e.g. the TextView
+        // remeasure in layoutChild), has to go through measure.
+        return this.measureCacheValid
+                && !child.isLayoutRequested()
+                && this.cachedWidthMeasureSpec == widthMeasureSpec
+                && this.cachedHeightMeasureSpec == heightMeasureSpec
+                && this.cachedWidth == this.getComputedWidth()
+                && this.cachedHeight == this.getComputedHeight()
+                && this.cachedLeftMargin == this.getComputedLeftMargin()
+                && this.cachedTopMargin == this.getComputedTopMargin()
+                && this.cachedRightMargin == this.getComputedRightMargin()
+                && this.cachedBottomMargin == this.getComputedBottomMargin()
+                && this.cachedGravity == this.gravity
+                && this.cachedMeasuredWidthAndState == child.getMeasuredWidthAndState()
+                && this.cachedMeasuredHeightAndState == child.getMeasuredHeightAndState();
+    }
+
+    private void updateMeasureCache(View child, int widthMeasureSpec, int heightMeasureSpec) {
+        this.measureCacheValid = true;
+        this.cachedWidthMeasureSpec = widthMeasureSpec;
+        this.cachedHeightMeasureSpec = heightMeasureSpec;
+        this.cachedWidth = this.getComputedWidth();
+        this.cachedHeight = this.getComputedHeight();
+        this.cachedLeftMargin = this.getComputedLeftMargin();
+        this.cachedTopMargin = this.getComputedTopMargin();
+        this.cachedRightMargin = this.getComputedRightMargin();
+        this.cachedBottomMargin = this.getComputedBottomMargin();
+        this.cachedGravity = this.gravity;
+        this.cachedMeasuredWidthAndState = child.getMeasuredWidthAndState();
+        this.cachedMeasuredHeightAndState = child.getMeasuredHeightAndState();
     }
 
     /**
-     * Iterates over children and changes their width and height to one calculated from percentage
-     * values.
+     * Iterates over children and resolves their percentage width, height and margins for the given
+     * parent size. The resolved values are returned by the getComputed* methods, the layout params
+     * fields stay untouched.
      *
      * @param viewGroup         The parent ViewGroup.
      * @param widthMeasureSpec  Width MeasureSpec of the parent ViewGroup.
@@ -283,113 +370,38 @@ public class CommonLayoutParams extends FrameLayout.LayoutParams {
             LayoutParams params = child.getLayoutParams();
 
             if (params instanceof CommonLayoutParams) {
-                CommonLayoutParams lp = (CommonLayoutParams) child.getLayoutParams();
+                CommonLayoutParams lp = (CommonLayoutParams) params;
+                // Percent values can't be resolved against an unspecified size, the fields are used as they are.
                 if (widthSpec != MeasureSpec.UNSPECIFIED) {
-                    if (lp.widthPercent > 0) {
-                        // If we get measured twice we will override the original value with the one calculated from percentValue from the first measure.
-                        // So we set originalValue only the first time.
-                        if (lp.widthOriginal == NOT_SET) {
-                            lp.widthOriginal = lp.width;
-                        }
-                        lp.width = (int) (availableWidth * lp.widthPercent);
-                    }
-                    else {
-                        lp.widthOriginal = NOT_SET;
-                    }
-
-                    if (lp.leftMarginPercent > 0) {
-                        if (lp.leftMarginOriginal == NOT_SET) {
-                            lp.leftMarginOriginal = lp.leftMargin;
-                        }
-                        lp.leftMargin = (int) (availableWidth * lp.leftMarginPercent);
-                    }
-                    else {
-                        lp.leftMarginOriginal = NOT_SET;
-                    }
-
-                    if (lp.rightMarginPercent > 0) {
-                        if (lp.rightMarginOriginal == NOT_SET) {
-                            lp.rightMarginOriginal = lp.rightMargin;
-                        }
-                        lp.rightMargin = (int) (availableWidth * lp.rightMarginPercent);
-                    }
-                    else {
-                        lp.rightMarginOriginal = NOT_SET;
-                    }
+                    lp.computedWidth = lp.widthPercent > 0 ? (int) (availableWidth * lp.widthPercent) : NOT_SET;
+                    lp.computedLeftMargin = lp.leftMarginPercent > 0 ? (int) (availableWidth * lp.leftMarginPercent) : NOT_SET;
+                    lp.computedRightMargin = lp.rightMarginPercent > 0 ? (int) (availableWidth * lp.rightMarginPercent) : NOT_SET;
+                } else {
+                    lp.computedWidth = NOT_SET;
+                    lp.computedLeftMargin = NOT_SET;
+                    lp.computedRightMargin = NOT_SET;
                 }
 
                 if (heightSpec != MeasureSpec.UNSPECIFIED) {
-                    if (lp.heightPercent > 0) {
-                        if (lp.heightOriginal == NOT_SET) {
-                            lp.heightOriginal = lp.height;
-                        }
-                        lp.height = (int) (availableHeight * lp.heightPercent);
-                    }
-                    else {
-                        lp.heightOriginal = NOT_SET;
-                    }
-
-                    if (lp.topMarginPercent > 0) {
-                        if (lp.topMarginOriginal == NOT_SET) {
-                            lp.topMarginOriginal = lp.topMargin;
-                        }
-                        lp.topMargin = (int) (availableHeight * lp.topMarginPercent);
-                    }
-                    else {
-                        lp.topMarginOriginal = NOT_SET;
-                    }
-
-                    if (lp.bottomMarginPercent > 0) {
-                        if (lp.bottomMarginOriginal == NOT_SET) {
-                            lp.bottomMarginOriginal = lp.bottomMargin;
-                        }
-                        lp.bottomMargin = (int) (availableHeight * lp.bottomMarginPercent);
-                    }
-                    else {
-                        lp.bottomMarginOriginal = NOT_SET;
-                    }
+                    lp.computedHeight = lp.heightPercent > 0 ? (int) (availableHeight * lp.heightPercent) : NOT_SET;
+                    lp.computedTopMargin = lp.topMarginPercent > 0 ? (int) (availableHeight * lp.topMarginPercent) : NOT_SET;
+                    lp.computedBottomMargin = lp.bottomMarginPercent > 0 ? (int) (availableHeight * lp.bottomMarginPercent) : NOT_SET;
+                } else {
+                    lp.computedHeight = NOT_SET;
+                    lp.computedTopMargin = NOT_SET;
+                    lp.computedBottomMargin = NOT_SET;
                 }
             }
         }
     }
 
     /**
-     * Iterates over children and restores their original dimensions that were changed for
-     * percentage values.
+     * Percentage values no longer change the layout params so there is nothing to restore.
+     *
+     * @deprecated kept for layouts outside this package that still call it after layout.
      */
+    @Deprecated
     protected static void restoreOriginalParams(ViewGroup viewGroup) {
-        for (int i = 0, count = viewGroup.getChildCount(); i < count; i++) {
-            View view = viewGroup.getChildAt(i);
-            LayoutParams params = view.getLayoutParams();
-            if (params instanceof CommonLayoutParams) {
-                CommonLayoutParams lp = (CommonLayoutParams) params;
-                if (lp.widthPercent > 0) {
-                    lp.width = lp.widthOriginal;
-                }
-                if (lp.heightPercent > 0) {
-                    lp.height = lp.heightOriginal;
-                }
-                if (lp.leftMarginPercent > 0) {
-                    lp.leftMargin = lp.leftMarginOriginal;
-                }
-                if (lp.topMarginPercent > 0) {
-                    lp.topMargin = lp.topMarginOriginal;
-                }
-                if (lp.rightMarginPercent > 0) {
-                    lp.rightMargin = lp.rightMarginOriginal;
-                }
-                if (lp.bottomMarginPercent > 0) {
-                    lp.bottomMargin = lp.bottomMarginOriginal;
-                }
-
-                lp.widthOriginal = NOT_SET;
-                lp.heightOriginal = NOT_SET;
-                lp.leftMarginOriginal = NOT_SET;
-                lp.topMarginOriginal = NOT_SET;
-                lp.rightMarginOriginal = NOT_SET;
-                lp.bottomMarginOriginal = NOT_SET;
-            }
-        }
     }
 
     static void log(String tag, String message) {
@@ -407,13 +419,13 @@ public class CommonLayoutParams extends FrameLayout.LayoutParams {
         int parentSpecMode = MeasureSpec.getMode(parentMeasureSpec);
 
         CommonLayoutParams lp = (CommonLayoutParams) view.getLayoutParams();
-        final int margins = horizontal ? lp.leftMargin + lp.rightMargin : lp.topMargin + lp.bottomMargin;
+        final int margins = horizontal ? lp.getComputedLeftMargin() + lp.getComputedRightMargin() : lp.getComputedTopMargin() + lp.getComputedBottomMargin();
 
         int resultSize = 0;
         int resultMode = MeasureSpec.UNSPECIFIED;
 
         int measureLength = Math.max(0, parentLength - margins);
-        int childLength = horizontal ? lp.width : lp.height;
+        int childLength = horizontal ? lp.getComputedWidth() : lp.getComputedHeight();
 
         // We want a specific size... let be it.
         if (childLength >= 0) {
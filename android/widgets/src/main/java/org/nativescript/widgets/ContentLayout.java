@@ -72,7 +72,5 @@ public class ContentLayout extends LayoutBase {
 		
 		    CommonLayoutParams.layoutChild(child, childLeft, childTop, childRight, childBottom);
 		}
-
-		CommonLayoutParams.restoreOriginalParams(this);
 	}
 }
\ No newline at end of file
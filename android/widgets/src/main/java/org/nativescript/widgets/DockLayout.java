@@ -172,7 +172,5 @@ public class DockLayout extends LayoutBase {
         if (childToStretch != null) {
         	CommonLayoutParams.layoutChild(childToStretch, x, y, x + remainingWidth, y + remainingHeight);
         }
-
-        CommonLayoutParams.restoreOriginalParams(this);
     }
 }
\ No newline at end of file
@@ -80,6 +80,24 @@ public class FlexLine {
      */
     List<Integer> mIndicesAlignSelfStretch = new ArrayList<>();
 
+    /**
+     * Clears the line so that {@link FlexboxLayout} can reuse it in the next measure.
+     */
+    void reset() {
+        mLeft = Integer.MAX_VALUE;
+        mTop = Integer.MAX_VALUE;
+        mRight = Integer.MIN_VALUE;
+        mBottom = Integer.MIN_VALUE;
+        mMainSize = 0;
+        mDividerLengthInMainSize = 0;
+        mCrossSize = 0;
+        mItemCount = 0;
+        mTotalFlexGrow = 0;
+        mTotalFlexShrink = 0;
+        mMaxBaseline = 0;
+        mIndicesAlignSelfStretch.clear();
+    }
+
     /**
      * @return the distance in pixels from the top edge of this view's parent
      * to the top edge of this FlexLine.
@@ -21,10 +21,8 @@ import android.content.res.TypedArray;
 import android.graphics.Canvas;
 import android.graphics.drawable.Drawable;
 import android.support.annotation.IntDef;
-import android.support.annotation.NonNull;
 import android.support.v4.view.ViewCompat;
 import android.util.AttributeSet;
-import android.util.SparseIntArray;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.FrameLayout;
@@ -278,19 +276,45 @@ public class FlexboxLayout extends ViewGroup {
     private int mDividerVerticalWidth;
 
     /**
-     * Holds reordered indices, which {@link LayoutParams#order} parameters are taken into account
+     * Holds reordered indices, which {@link LayoutParams#order} parameters are taken into account.
+     * Only the first {@link #mOrdersCount} items are valid, the array is reused as children are
+     * added.
      */
-    private int[] mReorderedIndices;
+    private int[] mReorderedIndices = new int[0];
 
     /**
-     * Caches the {@link LayoutParams#order} attributes for children views.
-     * Key: the index of the view ({@link #mReorderedIndices} isn't taken into account)
-     * Value: the value for the order attribute
+     * Caches the {@link LayoutParams#order} attributes for children views, indexed by the index of
+     * the view ({@link #mReorderedIndices} isn't taken into account).
      */
-    private SparseIntArray mOrderCache;
+    private int[] mOrders = new int[0];
+
+    /**
+     * The number of valid items in {@link #mOrders} and {@link #mReorderedIndices}, -1 if the
+     * reordered indices have to be created again.
+     */
+    private int mOrdersCount = -1;
+
+    /**
+     * Sort keys for {@link #createReorderedIndices()}: the order in the upper and the view index
+     * in the lower 32 bits, so sorting them keeps views with the same order in index order.
+     */
+    private long[] mOrderSortKeys = new long[0];
 
     private List<FlexLine> mFlexLines = new ArrayList<>();
 
+    /**
+     * The list {@link #determineCrossSize(int, int, int, int)} fills when it inserts the space
+     * lines for alignContent, swapped with {@link #mFlexLines} afterwards.
+     */
+    private List<FlexLine> mSpareFlexLines = new ArrayList<>();
+
+    /**
+     * Every {@link FlexLine} allocated so far. The lines are reset and handed out again on each
+     * measure instead of allocating new ones, {@link #mFlexLinePoolUsed} of them are in use.
+     */
+    private final List<FlexLine> mFlexLinePool = new ArrayList<>();
+    private int mFlexLinePoolUsed;
+
     /**
      * Holds the 'frozen' state of children during measure. If a view is frozen it will no longer
      * expand or shrink regardless of flexGrow/flexShrink. Items are indexed by the child's
@@ -357,13 +381,15 @@ public class FlexboxLayout extends ViewGroup {
 
         super.onMeasure(widthMeasureSpec, heightMeasureSpec);
         if (isOrderChangedFromLastMeasurement()) {
-            mReorderedIndices = createReorderedIndices();
+            createReorderedIndices();
         }
         if (mChildrenFrozen == null || mChildrenFrozen.length < getChildCount()) {
             mChildrenFrozen = new boolean[getChildCount()];
         }
 
-        // TODO: Only calculate the children views which are affected from the last measure.
+        // Children that didn't change are not measured again with the same MeasureSpecs (see
+        // View#measure), what is left is rebuilding the flex lines from the pooled instances.
+        mFlexLinePoolUsed = 0;
 
         switch (mFlexDirection) {
             case FLEX_DIRECTION_ROW: // Intentional fall through
@@ -392,7 +418,7 @@ public class FlexboxLayout extends ViewGroup {
      * returns {@code null}.
      */
     public View getReorderedChildAt(int index) {
-        if (index < 0 || index >= mReorderedIndices.length) {
+        if (index < 0 || index >= mOrdersCount) {
             return null;
         }
         return getChildAt(mReorderedIndices[index]);
@@ -400,18 +426,17 @@ public class FlexboxLayout extends ViewGroup {
 
     @Override
     public void addView(View child, int index, ViewGroup.LayoutParams params) {
-        // Create an array for the reordered indices before the View is added in the parent
+        // Update the reordered indices before the View is added in the parent
         // ViewGroup since otherwise reordered indices won't be in effect before the
         // FlexboxLayout's onMeasure is called.
         // Because requestLayout is requested in the super.addView method.
-        mReorderedIndices = createReorderedIndices(child, index, params);
+        addToReorderedIndices(child, index, params);
         super.addView(child, index, params);
     }
 
     /**
-     * Create an array, which indicates the reordered indices that {@link LayoutParams#order}
-     * attributes are taken into account. This method takes a View before that is added as the
-     * parent ViewGroup's children.
+     * Inserts a View that is about to be added as the parent ViewGroup's children into the
+     * reordered indices, without sorting all of them again.
      *
      * @param viewBeforeAdded          the View instance before added to the array of children
      *                                 Views of the parent ViewGroup
@@ -419,77 +444,100 @@ public class FlexboxLayout extends ViewGroup {
      *                                 parent ViewGroup
      * @param paramsForViewBeforeAdded the layout parameters for the View before added to the array
      *                                 of the parent ViewGroup
-     * @return an array which have the reordered indices
      */
-    private int[] createReorderedIndices(View viewBeforeAdded, int indexForViewBeforeAdded,
+    private void addToReorderedIndices(View viewBeforeAdded, int indexForViewBeforeAdded,
             ViewGroup.LayoutParams paramsForViewBeforeAdded) {
+        if (isOrderChangedFromLastMeasurement()) {
+            createReorderedIndices();
+        }
+
         int childCount = getChildCount();
-        List<Order> orders = createOrders(childCount);
-        Order orderForViewToBeAdded = new Order();
+        int order;
         if (viewBeforeAdded != null
                 && paramsForViewBeforeAdded instanceof FlexboxLayout.LayoutParams) {
-            orderForViewToBeAdded.order = ((LayoutParams) paramsForViewBeforeAdded).order;
+            order = ((LayoutParams) paramsForViewBeforeAdded).order;
         } else {
-            orderForViewToBeAdded.order = LayoutParams.ORDER_DEFAULT;
+            order = LayoutParams.ORDER_DEFAULT;
+        }
+
+        int index = indexForViewBeforeAdded;
+        if (index < 0 || index > childCount) {
+            // -1 adds the view at the end, other values are not expected since
+            // OutOfBoundException will be thrown in the ViewGroup but setting the index for fail-safe
+            index = childCount;
         }
 
-        if (indexForViewBeforeAdded == -1 || indexForViewBeforeAdded == childCount) {
-            orderForViewToBeAdded.index = childCount;
-        } else if (indexForViewBeforeAdded < getChildCount()) {
-            orderForViewToBeAdded.index = indexForViewBeforeAdded;
-            for (int i = indexForViewBeforeAdded; i < childCount; i++) {
-                orders.get(i).index++;
+        ensureOrdersCapacity(childCount + 1);
+
+        // Views from index on move one place forward
+        System.arraycopy(mOrders, index, mOrders, index + 1, childCount - index);
+        mOrders[index] = order;
+
+        // The new view goes before the first view with a greater order, or with the same order
+        // and a greater index.
+        int position = childCount;
+        for (int i = 0; i < childCount; i++) {
+            int childIndex = mReorderedIndices[i];
+            if (childIndex >= index) {
+                childIndex++;
+                mReorderedIndices[i] = childIndex;
+            }
+
+            if (position == childCount) {
+                int childOrder = mOrders[childIndex];
+                if (childOrder > order || (childOrder == order && childIndex > index)) {
+                    position = i;
+                }
             }
-        } else {
-            // This path is not expected since OutOfBoundException will be thrown in the ViewGroup
-            // But setting the index for fail-safe
-            orderForViewToBeAdded.index = childCount;
         }
-        orders.add(orderForViewToBeAdded);
 
-        return sortOrdersIntoReorderedIndices(childCount + 1, orders);
+        System.arraycopy(mReorderedIndices, position, mReorderedIndices, position + 1,
+                childCount - position);
+        mReorderedIndices[position] = index;
+        mOrdersCount = childCount + 1;
     }
 
     /**
-     * Create an array, which indicates the reordered indices that {@link LayoutParams#order}
-     * attributes are taken into account.
-     *
-     * @return @return an array which have the reordered indices
+     * Creates the reordered indices that {@link LayoutParams#order} attributes are taken into
+     * account for all children.
      */
-    private int[] createReorderedIndices() {
+    private void createReorderedIndices() {
         int childCount = getChildCount();
-        List<Order> orders = createOrders(childCount);
-        return sortOrdersIntoReorderedIndices(childCount, orders);
-    }
+        ensureOrdersCapacity(childCount);
 
-    private int[] sortOrdersIntoReorderedIndices(int childCount, List<Order> orders) {
-        Collections.sort(orders);
-        if (mOrderCache == null) {
-            mOrderCache = new SparseIntArray(childCount);
+        boolean inOrder = true;
+        for (int i = 0; i < childCount; i++) {
+            LayoutParams params = (LayoutParams) getChildAt(i).getLayoutParams();
+            mOrders[i] = params.order;
+            mReorderedIndices[i] = i;
+            if (i > 0 && mOrders[i] < mOrders[i - 1]) {
+                inOrder = false;
+            }
         }
-        mOrderCache.clear();
-        int[] reorderedIndices = new int[childCount];
-        int i = 0;
-        for (Order order : orders) {
-            reorderedIndices[i] = order.index;
-            mOrderCache.append(i, order.order);
-            i++;
+
+        // Usually no view sets order, then the views stay in index order.
+        if (!inOrder) {
+            if (mOrderSortKeys.length < childCount) {
+                mOrderSortKeys = new long[mOrders.length];
+            }
+            for (int i = 0; i < childCount; i++) {
+                mOrderSortKeys[i] = ((long) mOrders[i] << 32) | i;
+            }
+            Arrays.sort(mOrderSortKeys, 0, childCount);
+            for (int i = 0; i < childCount; i++) {
+                mReorderedIndices[i] = (int) mOrderSortKeys[i];
+            }
         }
-        return reorderedIndices;
+
+        mOrdersCount = childCount;
     }
 
-    @NonNull
-    private List<Order> createOrders(int childCount) {
-        List<Order> orders = new ArrayList<>();
-        for (int i = 0; i < childCount; i++) {
-            View child = getChildAt(i);
-            LayoutParams params = (LayoutParams) child.getLayoutParams();
-            Order order = new Order();
-            order.order = params.order;
-            order.index = i;
-            orders.add(order);
+    private void ensureOrdersCapacity(int count) {
+        if (mOrders.length < count) {
+            int capacity = Math.max(count, mOrders.length * 2);
+            mOrders = Arrays.copyOf(mOrders, capacity);
+            mReorderedIndices = Arrays.copyOf(mReorderedIndices, capacity);
         }
-        return orders;
     }
 
     /**
@@ -500,10 +548,7 @@ public class FlexboxLayout extends ViewGroup {
      */
     private boolean isOrderChangedFromLastMeasurement() {
         int childCount = getChildCount();
-        if (mOrderCache == null) {
-            mOrderCache = new SparseIntArray(childCount);
-        }
-        if (mOrderCache.size() != childCount) {
+        if (mOrdersCount != childCount) {
             return true;
         }
         for (int i = 0; i < childCount; i++) {
@@ -512,7 +557,7 @@ public class FlexboxLayout extends ViewGroup {
                 continue;
             }
             LayoutParams lp = (LayoutParams) view.getLayoutParams();
-            if (lp.order != mOrderCache.get(i)) {
+            if (lp.order != mOrders[i]) {
                 return true;
             }
         }
@@ -523,9 +568,7 @@ public class FlexboxLayout extends ViewGroup {
     * Invalidates the cache of the orders so that they are recalculated. 
     */
     public void invalidateOrdersCache() {
-        if (this.mOrderCache != null) {
-            this.mOrderCache.clear();
-        }
+        this.mOrdersCount = -1;
     }
 
     /**
@@ -555,7 +598,7 @@ public class FlexboxLayout extends ViewGroup {
             int paddingStart = ViewCompat.getPaddingStart(this);
             int paddingEnd = ViewCompat.getPaddingEnd(this);
             int largestHeightInRow = Integer.MIN_VALUE;
-            FlexLine flexLine = new FlexLine();
+            FlexLine flexLine = obtainFlexLine();
 
             // The index of the view in a same flex line.
             int indexInFlexLine = 0;
@@ -576,7 +619,7 @@ public class FlexboxLayout extends ViewGroup {
                     flexLine.mIndicesAlignSelfStretch.add(i);
                 }
 
-                int childWidth = lp.width;
+                int childWidth = lp.getComputedWidth();
                 if (lp.flexBasisPercent != LayoutParams.FLEX_BASIS_PERCENT_DEFAULT
                         && widthMode == MeasureSpec.EXACTLY) {
                     childWidth = Math.round(widthSize * lp.flexBasisPercent);
@@ -588,11 +631,11 @@ public class FlexboxLayout extends ViewGroup {
                     // is set to wrap_content)
                 }
                 int childWidthMeasureSpec = getChildMeasureSpec(widthMeasureSpec,
-                        getPaddingLeft() + getPaddingRight() + lp.leftMargin
-                                + lp.rightMargin, childWidth < 0 ? LayoutParams.WRAP_CONTENT : childWidth);
+                        getPaddingLeft() + getPaddingRight() + lp.getComputedLeftMargin()
+                                + lp.getComputedRightMargin(), childWidth < 0 ? LayoutParams.WRAP_CONTENT : childWidth);
                 int childHeightMeasureSpec = getChildMeasureSpec(heightMeasureSpec,
-                        getPaddingTop() + getPaddingBottom() + lp.topMargin
-                                + lp.bottomMargin, lp.height < 0 ? LayoutParams.WRAP_CONTENT : lp.height);
+                        getPaddingTop() + getPaddingBottom() + lp.getComputedTopMargin()
+                                + lp.getComputedBottomMargin(), lp.getComputedHeight() < 0 ? LayoutParams.WRAP_CONTENT : lp.getComputedHeight());
 
                 child.measure(childWidthMeasureSpec, childHeightMeasureSpec);
 
@@ -607,25 +650,25 @@ public class FlexboxLayout extends ViewGroup {
                 childState = ViewCompat
                         .combineMeasuredStates(childState, ViewCompat.getMeasuredState(child));
                 largestHeightInRow = Math.max(largestHeightInRow,
-                        child.getMeasuredHeight() + lp.topMargin + lp.bottomMargin);
+                        child.getMeasuredHeight() + lp.getComputedTopMargin() + lp.getComputedBottomMargin());
 
                 if (isWrapRequired(widthMode, widthSize, flexLine.mMainSize,
-                        child.getMeasuredWidth() + lp.leftMargin + lp.rightMargin, lp,
+                        child.getMeasuredWidth() + lp.getComputedLeftMargin() + lp.getComputedRightMargin(), lp,
                         i, indexInFlexLine)) {
                     if (flexLine.mItemCount > 0) {
                         addFlexLine(flexLine);
                     }
 
-                    flexLine = new FlexLine();
+                    flexLine = obtainFlexLine();
                     flexLine.mItemCount = 1;
                     flexLine.mMainSize = paddingStart + paddingEnd;
-                    largestHeightInRow = child.getMeasuredHeight() + lp.topMargin + lp.bottomMargin;
+                    largestHeightInRow = child.getMeasuredHeight() + lp.getComputedTopMargin() + lp.getComputedBottomMargin();
                     indexInFlexLine = 0;
                 } else {
                     flexLine.mItemCount++;
                     indexInFlexLine++;
                 }
-                flexLine.mMainSize += child.getMeasuredWidth() + lp.leftMargin + lp.rightMargin;
+                flexLine.mMainSize += child.getMeasuredWidth() + lp.getComputedLeftMargin() + lp.getComputedRightMargin();
                 flexLine.mTotalFlexGrow += lp.flexGrow;
                 flexLine.mTotalFlexShrink += lp.flexShrink;
                 // Temporarily set the cross axis length as the largest child in the row
@@ -641,7 +684,7 @@ public class FlexboxLayout extends ViewGroup {
 
                 if (mFlexWrap != FLEX_WRAP_WRAP_REVERSE) {
                     flexLine.mMaxBaseline = Math
-                            .max(flexLine.mMaxBaseline, child.getBaseline() + lp.topMargin);
+                            .max(flexLine.mMaxBaseline, child.getBaseline() + lp.getComputedTopMargin());
                 } else {
                     // if the flex wrap property is FLEX_WRAP_WRAP_REVERSE, calculate the
                     // baseline as the distance from the cross end and the baseline
@@ -649,7 +692,7 @@ public class FlexboxLayout extends ViewGroup {
                     flexLine.mMaxBaseline = Math
                             .max(flexLine.mMaxBaseline,
                                     child.getMeasuredHeight() - child.getBaseline()
-                                            + lp.bottomMargin);
+                                            + lp.getComputedBottomMargin());
                 }
                 addFlexLineIfLastFlexItem(i, childCount, flexLine);
             }
@@ -668,15 +711,15 @@ public class FlexboxLayout extends ViewGroup {
                     LayoutParams lp = (LayoutParams) child.getLayoutParams();
                     if (mFlexWrap != FLEX_WRAP_WRAP_REVERSE) {
                         int marginTop = flexLine.mMaxBaseline - child.getBaseline();
-                        marginTop = Math.max(marginTop, lp.topMargin);
+                        marginTop = Math.max(marginTop, lp.getComputedTopMargin());
                         largestHeightInLine = Math.max(largestHeightInLine,
-                                child.getHeight() + marginTop + lp.bottomMargin);
+                                child.getHeight() + marginTop + lp.getComputedBottomMargin());
                     } else {
                         int marginBottom = flexLine.mMaxBaseline - child.getMeasuredHeight() +
                                 child.getBaseline();
-                        marginBottom = Math.max(marginBottom, lp.bottomMargin);
+                        marginBottom = Math.max(marginBottom, lp.getComputedBottomMargin());
                         largestHeightInLine = Math.max(largestHeightInLine,
-                                child.getHeight() + lp.topMargin + marginBottom);
+                                child.getHeight() + lp.getComputedTopMargin() + marginBottom);
                     }
                 }
                 flexLine.mCrossSize = largestHeightInLine;
@@ -719,7 +762,7 @@ public class FlexboxLayout extends ViewGroup {
         int paddingTop = getPaddingTop();
         int paddingBottom = getPaddingBottom();
         int largestWidthInColumn = Integer.MIN_VALUE;
-        FlexLine flexLine = new FlexLine();
+        FlexLine flexLine = obtainFlexLine();
         flexLine.mMainSize = paddingTop + paddingBottom;
         // The index of the view in a same flex line.
         int indexInFlexLine = 0;
@@ -739,7 +782,7 @@ public class FlexboxLayout extends ViewGroup {
                 flexLine.mIndicesAlignSelfStretch.add(i);
             }
 
-            int childHeight = lp.height;
+            int childHeight = lp.getComputedHeight();
             if (lp.flexBasisPercent != LayoutParams.FLEX_BASIS_PERCENT_DEFAULT
                     && heightMode == MeasureSpec.EXACTLY) {
                 childHeight = Math.round(heightSize * lp.flexBasisPercent);
@@ -751,11 +794,11 @@ public class FlexboxLayout extends ViewGroup {
             }
 
             int childWidthMeasureSpec = getChildMeasureSpec(widthMeasureSpec,
-                    getPaddingLeft() + getPaddingRight() + lp.leftMargin
-                            + lp.rightMargin, lp.width < 0 ? LayoutParams.WRAP_CONTENT : lp.width);
+                    getPaddingLeft() + getPaddingRight() + lp.getComputedLeftMargin()
+                            + lp.getComputedRightMargin(), lp.getComputedWidth() < 0 ? LayoutParams.WRAP_CONTENT : lp.getComputedWidth());
             int childHeightMeasureSpec = getChildMeasureSpec(heightMeasureSpec,
-                    getPaddingTop() + getPaddingBottom() + lp.topMargin
-                            + lp.bottomMargin, childHeight < 0 ? LayoutParams.WRAP_CONTENT : childHeight);
+                    getPaddingTop() + getPaddingBottom() + lp.getComputedTopMargin()
+                            + lp.getComputedBottomMargin(), childHeight < 0 ? LayoutParams.WRAP_CONTENT : childHeight);
 
             child.measure(childWidthMeasureSpec, childHeightMeasureSpec);
 
@@ -770,25 +813,25 @@ public class FlexboxLayout extends ViewGroup {
             childState = ViewCompat
                     .combineMeasuredStates(childState, ViewCompat.getMeasuredState(child));
             largestWidthInColumn = Math.max(largestWidthInColumn,
-                    child.getMeasuredWidth() + lp.leftMargin + lp.rightMargin);
+                    child.getMeasuredWidth() + lp.getComputedLeftMargin() + lp.getComputedRightMargin());
 
             if (isWrapRequired(heightMode, heightSize, flexLine.mMainSize,
-                    child.getMeasuredHeight() + lp.topMargin + lp.bottomMargin, lp,
+                    child.getMeasuredHeight() + lp.getComputedTopMargin() + lp.getComputedBottomMargin(), lp,
                     i, indexInFlexLine)) {
                 if (flexLine.mItemCount > 0) {
                     addFlexLine(flexLine);
                 }
 
-                flexLine = new FlexLine();
+                flexLine = obtainFlexLine();
                 flexLine.mItemCount = 1;
                 flexLine.mMainSize = paddingTop + paddingBottom;
-                largestWidthInColumn = child.getMeasuredWidth() + lp.leftMargin + lp.rightMargin;
+                largestWidthInColumn = child.getMeasuredWidth() + lp.getComputedLeftMargin() + lp.getComputedRightMargin();
                 indexInFlexLine = 0;
             } else {
                 flexLine.mItemCount++;
                 indexInFlexLine++;
             }
-            flexLine.mMainSize += child.getMeasuredHeight() + lp.topMargin + lp.bottomMargin;
+            flexLine.mMainSize += child.getMeasuredHeight() + lp.getComputedTopMargin() + lp.getComputedBottomMargin();
             flexLine.mTotalFlexGrow += lp.flexGrow;
             flexLine.mTotalFlexShrink += lp.flexShrink;
             // Temporarily set the cross axis length as the largest child width in the column
@@ -846,6 +889,19 @@ public class FlexboxLayout extends ViewGroup {
         }
     }
 
+    private FlexLine obtainFlexLine() {
+        FlexLine flexLine;
+        if (mFlexLinePoolUsed < mFlexLinePool.size()) {
+            flexLine = mFlexLinePool.get(mFlexLinePoolUsed);
+            flexLine.reset();
+        } else {
+            flexLine = new FlexLine();
+            mFlexLinePool.add(flexLine);
+        }
+        mFlexLinePoolUsed++;
+        return flexLine;
+    }
+
     private void addFlexLineIfLastFlexItem(int childIndex, int childCount, FlexLine flexLine) {
         if (childIndex == childCount - 1 && flexLine.mItemCount != 0) {
             // Add the flex line if this item is the last item
@@ -984,7 +1040,7 @@ public class FlexboxLayout extends ViewGroup {
                                     .makeMeasureSpec(child.getMeasuredHeight(),
                                             MeasureSpec.EXACTLY));
                 }
-                flexLine.mMainSize += child.getMeasuredWidth() + lp.leftMargin + lp.rightMargin;
+                flexLine.mMainSize += child.getMeasuredWidth() + lp.getComputedLeftMargin() + lp.getComputedRightMargin();
             } else {
                 // The direction of the main axis is vertical
                 if (!mChildrenFrozen[childIndex]) {
@@ -1008,7 +1064,7 @@ public class FlexboxLayout extends ViewGroup {
                             MeasureSpec.EXACTLY),
                             MeasureSpec.makeMeasureSpec(roundedCalculatedHeight, MeasureSpec.EXACTLY));
                 }
-                flexLine.mMainSize += child.getMeasuredHeight() + lp.topMargin + lp.bottomMargin;
+                flexLine.mMainSize += child.getMeasuredHeight() + lp.getComputedTopMargin() + lp.getComputedBottomMargin();
             }
             childIndex++;
         }
@@ -1079,18 +1135,18 @@ public class FlexboxLayout extends ViewGroup {
                     // width needs to be wrapped in two when width is reduced.
                     // As a result we cannot unconditionally measure with EXACTLY the current measured height
                     int childHeightMeasureSpec = getChildMeasureSpec(this.getMeasuredHeightAndState(),
-                            getPaddingTop() + getPaddingBottom() + lp.topMargin
-                                    + lp.bottomMargin, lp.height < 0 ? LayoutParams.WRAP_CONTENT : lp.height);
+                            getPaddingTop() + getPaddingBottom() + lp.getComputedTopMargin()
+                                    + lp.getComputedBottomMargin(), lp.getComputedHeight() < 0 ? LayoutParams.WRAP_CONTENT : lp.getComputedHeight());
 
                     child.measure(childWidthMeasureSpec, childHeightMeasureSpec);
 
                     // make sure crossSize is up-to-date as child calculated height might have increased
                     flexLine.mCrossSize = Math.max(
                             flexLine.mCrossSize,
-                            child.getMeasuredHeight() + lp.topMargin + lp.bottomMargin
+                            child.getMeasuredHeight() + lp.getComputedTopMargin() + lp.getComputedBottomMargin()
                     );
                 }
-                flexLine.mMainSize += child.getMeasuredWidth() + lp.leftMargin + lp.rightMargin;
+                flexLine.mMainSize += child.getMeasuredWidth() + lp.getComputedLeftMargin() + lp.getComputedRightMargin();
             } else {
                 // The direction of main axis is vertical
                 if (!mChildrenFrozen[childIndex]) {
@@ -1108,7 +1164,7 @@ public class FlexboxLayout extends ViewGroup {
                             MeasureSpec.EXACTLY),
                             MeasureSpec.makeMeasureSpec(roundedCalculatedHeight, MeasureSpec.EXACTLY));
                 }
-                flexLine.mMainSize += child.getMeasuredHeight() + lp.topMargin + lp.bottomMargin;
+                flexLine.mMainSize += child.getMeasuredHeight() + lp.getComputedTopMargin() + lp.getComputedBottomMargin();
             }
             childIndex++;
         }
@@ -1192,14 +1248,16 @@ public class FlexboxLayout extends ViewGroup {
                         // The number of spaces along the cross axis
                         int numberOfSpaces = mFlexLines.size() * 2;
                         spaceTopAndBottom = spaceTopAndBottom / numberOfSpaces;
-                        List<FlexLine> newFlexLines = new ArrayList<>();
-                        FlexLine dummySpaceFlexLine = new FlexLine();
+                        List<FlexLine> newFlexLines = mSpareFlexLines;
+                        newFlexLines.clear();
+                        FlexLine dummySpaceFlexLine = obtainFlexLine();
                         dummySpaceFlexLine.mCrossSize = spaceTopAndBottom;
                         for (FlexLine flexLine : mFlexLines) {
                             newFlexLines.add(dummySpaceFlexLine);
                             newFlexLines.add(flexLine);
                             newFlexLines.add(dummySpaceFlexLine);
                         }
+                        mSpareFlexLines = mFlexLines;
                         mFlexLines = newFlexLines;
                         break;
                     }
@@ -1209,13 +1267,14 @@ public class FlexboxLayout extends ViewGroup {
                         int numberOfSpaces = mFlexLines.size() - 1;
                         spaceBetweenFlexLine = spaceBetweenFlexLine / (float) numberOfSpaces;
                         float accumulatedError = 0;
-                        List<FlexLine> newFlexLines = new ArrayList<>();
+                        List<FlexLine> newFlexLines = mSpareFlexLines;
+                        newFlexLines.clear();
                         for (int i = 0, flexLineSize = mFlexLines.size(); i < flexLineSize; i++) {
                             FlexLine flexLine = mFlexLines.get(i);
                             newFlexLines.add(flexLine);
 
                             if (i != mFlexLines.size() - 1) {
-                                FlexLine dummySpaceFlexLine = new FlexLine();
+                                FlexLine dummySpaceFlexLine = obtainFlexLine();
                                 if (i == mFlexLines.size() - 2) {
                                     // The last dummy space block in the flex container.
                                     // Adjust the cross size by the accumulated error.
@@ -1238,14 +1297,16 @@ public class FlexboxLayout extends ViewGroup {
                                 newFlexLines.add(dummySpaceFlexLine);
                             }
                         }
+                        mSpareFlexLines = mFlexLines;
                         mFlexLines = newFlexLines;
                         break;
                     }
                     case ALIGN_CONTENT_CENTER: {
                         int spaceAboveAndBottom = size - totalCrossSize;
                         spaceAboveAndBottom = spaceAboveAndBottom / 2;
-                        List<FlexLine> newFlexLines = new ArrayList<>();
-                        FlexLine dummySpaceFlexLine = new FlexLine();
+                        List<FlexLine> newFlexLines = mSpareFlexLines;
+                        newFlexLines.clear();
+                        FlexLine dummySpaceFlexLine = obtainFlexLine();
                         dummySpaceFlexLine.mCrossSize = spaceAboveAndBottom;
                         for (int i = 0, flexLineSize = mFlexLines.size(); i < flexLineSize; i++) {
                             if (i == 0) {
@@ -1257,12 +1318,13 @@ public class FlexboxLayout extends ViewGroup {
                                 newFlexLines.add(dummySpaceFlexLine);
                             }
                         }
+                        mSpareFlexLines = mFlexLines;
                         mFlexLines = newFlexLines;
                         break;
                     }
                     case ALIGN_CONTENT_FLEX_END: {
                         int spaceTop = size - totalCrossSize;
-                        FlexLine dummySpaceFlexLine = new FlexLine();
+                        FlexLine dummySpaceFlexLine = obtainFlexLine();
                         dummySpaceFlexLine.mCrossSize = spaceTop;
                         mFlexLines.add(0, dummySpaceFlexLine);
                         break;
@@ -1340,7 +1402,7 @@ public class FlexboxLayout extends ViewGroup {
      */
     private void stretchViewVertically(View view, int crossSize) {
         LayoutParams lp = (LayoutParams) view.getLayoutParams();
-        int newHeight = crossSize - lp.topMargin - lp.bottomMargin;
+        int newHeight = crossSize - lp.getComputedTopMargin() - lp.getComputedBottomMargin();
         newHeight = Math.max(newHeight, 0);
         view.measure(MeasureSpec
                         .makeMeasureSpec(view.getMeasuredWidth(), MeasureSpec.EXACTLY),
@@ -1355,7 +1417,7 @@ public class FlexboxLayout extends ViewGroup {
      */
     private void stretchViewHorizontally(View view, int crossSize) {
         LayoutParams lp = (LayoutParams) view.getLayoutParams();
-        int newWidth = crossSize - lp.leftMargin - lp.rightMargin;
+        int newWidth = crossSize - lp.getComputedLeftMargin() - lp.getComputedRightMargin();
         newWidth = Math.max(newWidth, 0);
         view.measure(MeasureSpec
                         .makeMeasureSpec(newWidth, MeasureSpec.EXACTLY),
@@ -1584,8 +1646,6 @@ public class FlexboxLayout extends ViewGroup {
             default:
                 throw new IllegalStateException("Invalid flex direction is set: " + mFlexDirection);
         }
-
-        CommonLayoutParams.restoreOriginalParams(this);
     }
 
     /**
@@ -1675,8 +1735,8 @@ public class FlexboxLayout extends ViewGroup {
                     continue;
                 }
                 LayoutParams lp = ((LayoutParams) child.getLayoutParams());
-                childLeft += lp.leftMargin;
-                childRight -= lp.rightMargin;
+                childLeft += lp.getComputedLeftMargin();
+                childRight -= lp.getComputedRightMargin();
                 if (hasDividerBeforeChildAtAlongMainAxis(currentViewIndex, j)) {
                     childLeft += mDividerVerticalWidth;
                     childRight -= mDividerVerticalWidth;
@@ -1706,14 +1766,14 @@ public class FlexboxLayout extends ViewGroup {
                                 childTop + child.getMeasuredHeight());
                     }
                 }
-                childLeft += child.getMeasuredWidth() + spaceBetweenItem + lp.rightMargin;
-                childRight -= child.getMeasuredWidth() + spaceBetweenItem + lp.leftMargin;
+                childLeft += child.getMeasuredWidth() + spaceBetweenItem + lp.getComputedRightMargin();
+                childRight -= child.getMeasuredWidth() + spaceBetweenItem + lp.getComputedLeftMargin();
                 currentViewIndex++;
 
-                flexLine.mLeft = Math.min(flexLine.mLeft, child.getLeft() - lp.leftMargin);
-                flexLine.mTop = Math.min(flexLine.mTop, child.getTop() - lp.topMargin);
-                flexLine.mRight = Math.max(flexLine.mRight, child.getRight() + lp.rightMargin);
-                flexLine.mBottom = Math.max(flexLine.mBottom, child.getBottom() + lp.bottomMargin);
+                flexLine.mLeft = Math.min(flexLine.mLeft, child.getLeft() - lp.getComputedLeftMargin());
+                flexLine.mTop = Math.min(flexLine.mTop, child.getTop() - lp.getComputedTopMargin());
+                flexLine.mRight = Math.max(flexLine.mRight, child.getRight() + lp.getComputedRightMargin());
+                flexLine.mBottom = Math.max(flexLine.mBottom, child.getBottom() + lp.getComputedBottomMargin());
             }
             childTop += flexLine.mCrossSize;
             childBottom -= flexLine.mCrossSize;
@@ -1755,45 +1815,45 @@ public class FlexboxLayout extends ViewGroup {
             case ALIGN_ITEMS_FLEX_START: // Intentional fall through
             case ALIGN_ITEMS_STRETCH:
                 if (flexWrap != FLEX_WRAP_WRAP_REVERSE) {
-                    view.layout(left, top + lp.topMargin, right, bottom + lp.topMargin);
+                    view.layout(left, top + lp.getComputedTopMargin(), right, bottom + lp.getComputedTopMargin());
                 } else {
-                    view.layout(left, top - lp.bottomMargin, right, bottom - lp.bottomMargin);
+                    view.layout(left, top - lp.getComputedBottomMargin(), right, bottom - lp.getComputedBottomMargin());
                 }
                 break;
             case ALIGN_ITEMS_BASELINE:
                 if (flexWrap != FLEX_WRAP_WRAP_REVERSE) {
                     int marginTop = flexLine.mMaxBaseline - view.getBaseline();
-                    marginTop = Math.max(marginTop, lp.topMargin);
+                    marginTop = Math.max(marginTop, lp.getComputedTopMargin());
                     view.layout(left, top + marginTop, right, bottom + marginTop);
                 } else {
                     int marginBottom = flexLine.mMaxBaseline - view.getMeasuredHeight() + view
                             .getBaseline();
-                    marginBottom = Math.max(marginBottom, lp.bottomMargin);
+                    marginBottom = Math.max(marginBottom, lp.getComputedBottomMargin());
                     view.layout(left, top - marginBottom, right, bottom - marginBottom);
                 }
                 break;
             case ALIGN_ITEMS_FLEX_END:
                 if (flexWrap != FLEX_WRAP_WRAP_REVERSE) {
                     view.layout(left,
-                            top + crossSize - view.getMeasuredHeight() - lp.bottomMargin,
-                            right, top + crossSize - lp.bottomMargin);
+                            top + crossSize - view.getMeasuredHeight() - lp.getComputedBottomMargin(),
+                            right, top + crossSize - lp.getComputedBottomMargin());
                 } else {
                     // If the flexWrap == FLEX_WRAP_WRAP_REVERSE, the direction of the
                     // flexEnd is flipped (from top to bottom).
-                    view.layout(left, top - crossSize + view.getMeasuredHeight() + lp.topMargin,
-                            right, bottom - crossSize + view.getMeasuredHeight() + lp.topMargin);
+                    view.layout(left, top - crossSize + view.getMeasuredHeight() + lp.getComputedTopMargin(),
+                            right, bottom - crossSize + view.getMeasuredHeight() + lp.getComputedTopMargin());
                 }
                 break;
             case ALIGN_ITEMS_CENTER:
                 int topFromCrossAxis = (crossSize - view.getMeasuredHeight()) / 2;
                 if (flexWrap != FLEX_WRAP_WRAP_REVERSE) {
-                    view.layout(left, top + topFromCrossAxis + lp.topMargin - lp.bottomMargin,
-                            right, top + topFromCrossAxis + view.getMeasuredHeight() + lp.topMargin
-                                    - lp.bottomMargin);
+                    view.layout(left, top + topFromCrossAxis + lp.getComputedTopMargin() - lp.getComputedBottomMargin(),
+                            right, top + topFromCrossAxis + view.getMeasuredHeight() + lp.getComputedTopMargin()
+                                    - lp.getComputedBottomMargin());
                 } else {
-                    view.layout(left, top - topFromCrossAxis + lp.topMargin - lp.bottomMargin,
-                            right, top - topFromCrossAxis + view.getMeasuredHeight() + lp.topMargin
-                                    - lp.bottomMargin);
+                    view.layout(left, top - topFromCrossAxis + lp.getComputedTopMargin() - lp.getComputedBottomMargin(),
+                            right, top - topFromCrossAxis + view.getMeasuredHeight() + lp.getComputedTopMargin()
+                                    - lp.getComputedBottomMargin());
                 }
                 break;
         }
@@ -1892,8 +1952,8 @@ public class FlexboxLayout extends ViewGroup {
                     continue;
                 }
                 LayoutParams lp = ((LayoutParams) child.getLayoutParams());
-                childTop += lp.topMargin;
-                childBottom -= lp.bottomMargin;
+                childTop += lp.getComputedTopMargin();
+                childBottom -= lp.getComputedBottomMargin();
                 if (hasDividerBeforeChildAtAlongMainAxis(currentViewIndex, j)) {
                     childTop += mDividerHorizontalHeight;
                     childBottom -= mDividerHorizontalHeight;
@@ -1921,14 +1981,14 @@ public class FlexboxLayout extends ViewGroup {
                                 Math.round(childTop) + child.getMeasuredHeight());
                     }
                 }
-                childTop += child.getMeasuredHeight() + spaceBetweenItem + lp.bottomMargin;
-                childBottom -= child.getMeasuredHeight() + spaceBetweenItem + lp.topMargin;
+                childTop += child.getMeasuredHeight() + spaceBetweenItem + lp.getComputedBottomMargin();
+                childBottom -= child.getMeasuredHeight() + spaceBetweenItem + lp.getComputedTopMargin();
                 currentViewIndex++;
 
-                flexLine.mLeft = Math.min(flexLine.mLeft, child.getLeft() - lp.leftMargin);
-                flexLine.mTop = Math.min(flexLine.mTop, child.getTop() - lp.topMargin);
-                flexLine.mRight = Math.max(flexLine.mRight, child.getRight() + lp.rightMargin);
-                flexLine.mBottom = Math.max(flexLine.mBottom, child.getBottom() + lp.bottomMargin);
+                flexLine.mLeft = Math.min(flexLine.mLeft, child.getLeft() - lp.getComputedLeftMargin());
+                flexLine.mTop = Math.min(flexLine.mTop, child.getTop() - lp.getComputedTopMargin());
+                flexLine.mRight = Math.max(flexLine.mRight, child.getRight() + lp.getComputedRightMargin());
+                flexLine.mBottom = Math.max(flexLine.mBottom, child.getBottom() + lp.getComputedBottomMargin());
             }
             childLeft += flexLine.mCrossSize;
             childRight -= flexLine.mCrossSize;
@@ -1972,33 +2032,33 @@ public class FlexboxLayout extends ViewGroup {
             case ALIGN_ITEMS_STRETCH: // Intentional fall through
             case ALIGN_ITEMS_BASELINE:
                 if (!isRtl) {
-                    view.layout(left + lp.leftMargin, top, right + lp.leftMargin, bottom);
+                    view.layout(left + lp.getComputedLeftMargin(), top, right + lp.getComputedLeftMargin(), bottom);
                 } else {
-                    view.layout(left - lp.rightMargin, top, right - lp.rightMargin, bottom);
+                    view.layout(left - lp.getComputedRightMargin(), top, right - lp.getComputedRightMargin(), bottom);
                 }
                 break;
             case ALIGN_ITEMS_FLEX_END:
                 if (!isRtl) {
-                    view.layout(left + crossSize - view.getMeasuredWidth() - lp.rightMargin,
-                            top, right + crossSize - view.getMeasuredWidth() - lp.rightMargin,
+                    view.layout(left + crossSize - view.getMeasuredWidth() - lp.getComputedRightMargin(),
+                            top, right + crossSize - view.getMeasuredWidth() - lp.getComputedRightMargin(),
                             bottom);
                 } else {
                     // If the flexWrap == FLEX_WRAP_WRAP_REVERSE, the direction of the
                     // flexEnd is flipped (from left to right).
-                    view.layout(left - crossSize + view.getMeasuredWidth() + lp.leftMargin, top,
-                            right - crossSize + view.getMeasuredWidth() + lp.leftMargin,
+                    view.layout(left - crossSize + view.getMeasuredWidth() + lp.getComputedLeftMargin(), top,
+                            right - crossSize + view.getMeasuredWidth() + lp.getComputedLeftMargin(),
                             bottom);
                 }
                 break;
             case ALIGN_ITEMS_CENTER:
                 int leftFromCrossAxis = (crossSize - view.getMeasuredWidth()) / 2;
                 if (!isRtl) {
-                    view.layout(left + leftFromCrossAxis + lp.leftMargin - lp.rightMargin,
-                            top, right + leftFromCrossAxis + lp.leftMargin - lp.rightMargin,
+                    view.layout(left + leftFromCrossAxis + lp.getComputedLeftMargin() - lp.getComputedRightMargin(),
+                            top, right + leftFromCrossAxis + lp.getComputedLeftMargin() - lp.getComputedRightMargin(),
                             bottom);
                 } else {
-                    view.layout(left - leftFromCrossAxis + lp.leftMargin - lp.rightMargin,
-                            top, right - leftFromCrossAxis + lp.leftMargin - lp.rightMargin,
+                    view.layout(left - leftFromCrossAxis + lp.getComputedLeftMargin() - lp.getComputedRightMargin(),
+                            top, right - leftFromCrossAxis + lp.getComputedLeftMargin() - lp.getComputedRightMargin(),
                             bottom);
                 }
                 break;
@@ -2078,9 +2138,9 @@ public class FlexboxLayout extends ViewGroup {
                 if (hasDividerBeforeChildAtAlongMainAxis(currentViewIndex, j)) {
                     int dividerLeft;
                     if (isRtl) {
-                        dividerLeft = view.getRight() + lp.rightMargin;
+                        dividerLeft = view.getRight() + lp.getComputedRightMargin();
                     } else {
-                        dividerLeft = view.getLeft() - lp.leftMargin - mDividerVerticalWidth;
+                        dividerLeft = view.getLeft() - lp.getComputedLeftMargin() - mDividerVerticalWidth;
                     }
 
                     drawVerticalDivider(canvas, dividerLeft, flexLine.mTop, flexLine.mCrossSize);
@@ -2091,9 +2151,9 @@ public class FlexboxLayout extends ViewGroup {
                     if ((mShowDividerVertical & SHOW_DIVIDER_END) > 0) {
                         int dividerLeft;
                         if (isRtl) {
-                            dividerLeft = view.getLeft() - lp.leftMargin - mDividerVerticalWidth;
+                            dividerLeft = view.getLeft() - lp.getComputedLeftMargin() - mDividerVerticalWidth;
                         } else {
-                            dividerLeft = view.getRight() + lp.rightMargin;
+                            dividerLeft = view.getRight() + lp.getComputedRightMargin();
                         }
 
                         drawVerticalDivider(canvas, dividerLeft, flexLine.mTop,
@@ -2158,9 +2218,9 @@ public class FlexboxLayout extends ViewGroup {
                 if (hasDividerBeforeChildAtAlongMainAxis(currentViewIndex, j)) {
                     int dividerTop;
                     if (fromBottomToTop) {
-                        dividerTop = view.getBottom() + lp.bottomMargin;
+                        dividerTop = view.getBottom() + lp.getComputedBottomMargin();
                     } else {
-                        dividerTop = view.getTop() - lp.topMargin - mDividerHorizontalHeight;
+                        dividerTop = view.getTop() - lp.getComputedTopMargin() - mDividerHorizontalHeight;
                     }
 
                     drawHorizontalDivider(canvas, flexLine.mLeft, dividerTop, flexLine.mCrossSize);
@@ -2171,9 +2231,9 @@ public class FlexboxLayout extends ViewGroup {
                     if ((mShowDividerHorizontal & SHOW_DIVIDER_END) > 0) {
                         int dividerTop;
                         if (fromBottomToTop) {
-                            dividerTop = view.getTop() - lp.topMargin - mDividerHorizontalHeight;
+                            dividerTop = view.getTop() - lp.getComputedTopMargin() - mDividerHorizontalHeight;
                         } else {
-                            dividerTop = view.getBottom() + lp.bottomMargin;
+                            dividerTop = view.getBottom() + lp.getComputedBottomMargin();
                         }
 
                         drawHorizontalDivider(canvas, flexLine.mLeft, dividerTop,
@@ -2315,7 +2375,8 @@ public class FlexboxLayout extends ViewGroup {
 
     /**
      * @return the flex lines composing this flex container. This method returns an unmodifiable
-     * list. Thus any changes of the returned list are not supported.
+     * list. Thus any changes of the returned list are not supported. The lines are reused by the
+     * next measure, so they should not be kept.
      */
     public List<FlexLine> getFlexLines() {
         return Collections.unmodifiableList(mFlexLines);
@@ -2686,33 +2747,4 @@ public class FlexboxLayout extends ViewGroup {
             this.alignSelf = source.alignSelf;
         }
     }
-
-    /**
-     * A class that is used for calculating the view order which view's indices and order
-     * properties from Flexbox are taken into account.
-     */
-    private static class Order implements Comparable<Order> {
-
-        /** {@link View}'s index */
-        int index;
-
-        /** order property in the Flexbox */
-        int order;
-
-        @Override
-        public int compareTo(@NonNull Order another) {
-            if (order != another.order) {
-                return order - another.order;
-            }
-            return index - another.index;
-        }
-
-        @Override
-        public String toString() {
-            return "Order{" +
-                    "order=" + order +
-                    ", index=" + index +
-                    '}';
-        }
-    }
-}
\ No newline at end of file
+}
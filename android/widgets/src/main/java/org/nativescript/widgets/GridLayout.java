@@ -4,7 +4,7 @@
 package org.nativescript.widgets;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 
 import android.content.Context;
 import android.view.Gravity;
@@ -20,9 +20,11 @@ public class GridLayout extends LayoutBase {
 
     private ArrayList<ItemSpec> _rows = new ArrayList<ItemSpec>();
     private ArrayList<ItemSpec> _cols = new ArrayList<ItemSpec>();
-    private ArrayList<Integer> columnOffsets = new ArrayList<Integer>();
-    private ArrayList<Integer> rowOffsets = new ArrayList<Integer>();
-    private HashMap<View, MeasureSpecs> map = new HashMap<View, MeasureSpecs>();
+    private int[] columnOffsets = new int[0];
+    private int[] rowOffsets = new int[0];
+
+    // Measure state of the visible children by their position in the last measure, reused across passes.
+    private MeasureSpecs[] measureSpecs = new MeasureSpecs[0];
 
     public GridLayout(Context context) {
         super(context);
@@ -112,48 +114,6 @@ public class GridLayout extends LayoutBase {
         return copy;
     }
 
-    @Override
-    public void addView(View child) {
-        super.addView(child);
-        this.addToMap(child);
-    }
-
-    @Override
-    public void addView(View child, int index) {
-        super.addView(child, index);
-        this.addToMap(child);
-    }
-
-    @Override
-    public void addView(View child, LayoutParams params) {
-        super.addView(child, params);
-        this.addToMap(child);
-    }
-
-    @Override
-    public void removeView(View view) {
-        this.removeFromMap(view);
-        super.removeView(view);
-    }
-
-    @Override
-    public void removeViewAt(int index) {
-        View view = this.getChildAt(index);
-        this.removeFromMap(view);
-        super.removeViewAt(index);
-    }
-
-    @Override
-    public void removeViews(int start, int count) {
-        int end = start + count;
-        for (int i = start; i < end; i++) {
-            View view = this.getChildAt(i);
-            this.removeFromMap(view);
-        }
-
-        super.removeViews(start, count);
-    }
-
     private int getColumnIndex(CommonLayoutParams lp) {
         return Math.max(0, Math.min(lp.column, this._cols.size() - 1));
     }
@@ -220,14 +180,20 @@ public class GridLayout extends LayoutBase {
         measureSpec.starRowsCount = 0;
     }
 
-    private void addToMap(View child) {
-        MeasureSpecs measureSpec = new MeasureSpecs(child);
-        this.map.put(child, measureSpec);
-    }
+    private MeasureSpecs obtainMeasureSpecs(int index, View child) {
+        if (index == this.measureSpecs.length) {
+            this.measureSpecs = Arrays.copyOf(this.measureSpecs, Math.max(8, index * 2));
+        }
 
-    private void removeFromMap(View child) {
-        this.map.get(child).child = null;
-        this.map.remove(child);
+        MeasureSpecs measureSpec = this.measureSpecs[index];
+        if (measureSpec == null) {
+            measureSpec = new MeasureSpecs(child);
+            this.measureSpecs[index] = measureSpec;
+        } else {
+            measureSpec.child = child;
+        }
+
+        return measureSpec;
     }
 
     @Override
@@ -266,17 +232,23 @@ public class GridLayout extends LayoutBase {
         this.helper.clearMeasureSpecs();
         this.helper.init();
 
+        int measureSpecsCount = 0;
         for (int i = 0, count = this.getChildCount(); i < count; i++) {
             View child = this.getChildAt(i);
             if (child.getVisibility() == View.GONE) {
                 continue;
             }
 
-            MeasureSpecs measureSpecs = this.map.get(child);
+            MeasureSpecs measureSpecs = this.obtainMeasureSpecs(measureSpecsCount++, child);
             this.updateMeasureSpecs(child, measureSpecs);
             this.helper.addMeasureSpec(measureSpecs);
         }
 
+        // Don't keep removed or hidden views alive through the unused entries.
+        for (int i = measureSpecsCount; i < this.measureSpecs.length && this.measureSpecs[i] != null; i++) {
+            this.measureSpecs[i].child = null;
+        }
+
         this.helper.measure();
 
         // Add in our padding
@@ -298,17 +270,16 @@ public class GridLayout extends LayoutBase {
         int paddingLeft = this.getPaddingLeft();
         int paddingTop = this.getPaddingTop();
 
-        this.columnOffsets.clear();
-        this.rowOffsets.clear();
-
-        this.columnOffsets.add(paddingLeft);
-        this.rowOffsets.add(paddingTop);
+        int size = this.helper.columns.size();
+        if (this.columnOffsets.length < size + 1) {
+            this.columnOffsets = new int[size + 1];
+        }
+        this.columnOffsets[0] = paddingLeft;
 
-        float offset = this.columnOffsets.get(0);
+        float offset = paddingLeft;
         int roundedOffset = paddingLeft;
         int roundedLength = 0;
         float actualLength = 0;
-        int size = this.helper.columns.size();
         for (int i = 0; i < size; i++) {
             ItemGroup columnGroup = this.helper.columns.get(i);
             offset += columnGroup.length;
@@ -318,14 +289,19 @@ public class GridLayout extends LayoutBase {
             columnGroup.rowOrColumn._actualLength = roundedLength;
             roundedOffset += roundedLength;
 
-            this.columnOffsets.add(roundedOffset);
+            this.columnOffsets[i + 1] = roundedOffset;
         }
 
-        offset = this.rowOffsets.get(0);
-        roundedOffset = this.getPaddingTop();
+        size = this.helper.rows.size();
+        if (this.rowOffsets.length < size + 1) {
+            this.rowOffsets = new int[size + 1];
+        }
+        this.rowOffsets[0] = paddingTop;
+
+        offset = paddingTop;
+        roundedOffset = paddingTop;
         roundedLength = 0;
         actualLength = 0;
-        size = this.helper.rows.size();
         for (int i = 0; i < size; i++) {
             ItemGroup rowGroup = this.helper.rows.get(i);
             offset += rowGroup.length;
@@ -335,7 +311,7 @@ public class GridLayout extends LayoutBase {
             rowGroup.rowOrColumn._actualLength = roundedLength;
             roundedOffset += roundedLength;
 
-            this.rowOffsets.add(roundedOffset);
+            this.rowOffsets[i + 1] = roundedOffset;
         }
 
         int columns = this.helper.columns.size();
@@ -345,17 +321,15 @@ public class GridLayout extends LayoutBase {
             for (int j = 0; j < children; j++) {
 
                 MeasureSpecs measureSpec = columnGroup.children.get(j);
-                int childLeft = this.columnOffsets.get(measureSpec.getColumnIndex());
-                int childRight = this.columnOffsets.get(measureSpec.getColumnIndex() + measureSpec.getColumnSpan());
-                int childTop = this.rowOffsets.get(measureSpec.getRowIndex());
-                int childBottom = this.rowOffsets.get(measureSpec.getRowIndex() + measureSpec.getRowSpan());
+                int childLeft = this.columnOffsets[measureSpec.getColumnIndex()];
+                int childRight = this.columnOffsets[measureSpec.getColumnIndex() + measureSpec.getColumnSpan()];
+                int childTop = this.rowOffsets[measureSpec.getRowIndex()];
+                int childBottom = this.rowOffsets[measureSpec.getRowIndex() + measureSpec.getRowSpan()];
 
                 // No need to include margins in the width, height
                 CommonLayoutParams.layoutChild(measureSpec.child, childLeft, childTop, childRight, childBottom);
             }
         }
-
-        CommonLayoutParams.restoreOriginalParams(this);
     }
 }
 
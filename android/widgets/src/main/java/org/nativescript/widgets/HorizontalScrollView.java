@@ -148,11 +148,11 @@ public class HorizontalScrollView extends android.widget.HorizontalScrollView {
 	    	
         	// Android ScrollView does not account to child margins so we set them as paddings. Otherwise you can never scroll to bottom. 
 	    	CommonLayoutParams lp = (CommonLayoutParams)child.getLayoutParams();
-	    	this.setPadding(lp.leftMargin, lp.topMargin, lp.rightMargin, lp.bottomMargin);
+	    	this.setPadding(lp.getComputedLeftMargin(), lp.getComputedTopMargin(), lp.getComputedRightMargin(), lp.getComputedBottomMargin());
 	    }
 	
 	    // Don't add in our paddings because they are already added as child margins. (we will include them twice if we add them).
-        // Check the previous line - this.setPadding(lp.leftMargin, lp.topMargin, lp.rightMargin, lp.bottomMargin);
+        // Check the previous line - this.setPadding(lp.getComputedLeftMargin(), lp.getComputedTopMargin(), lp.getComputedRightMargin(), lp.getComputedBottomMargin());
         //this.contentMeasuredWidth += this.getPaddingLeft() + this.getPaddingRight();
         //this.contentMeasuredHeight += this.getPaddingTop() + this.getPaddingBottom();
 
@@ -214,7 +214,6 @@ public class HorizontalScrollView extends android.widget.HorizontalScrollView {
 
         // Calling this with the present values causes it to re-claim them
         this.scrollTo(scrollX, scrollY);
-        CommonLayoutParams.restoreOriginalParams(this);
     }
     
     @Override
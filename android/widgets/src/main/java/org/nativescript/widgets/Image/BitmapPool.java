@@ -0,0 +1,220 @@
+package org.nativescript.widgets.image;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A pool of strongly held, mutable bitmaps available for inBitmap reuse.
+ * Bitmaps are grouped in buckets by config and allocation size (by config and dimensions before
+ * KitKat, where inBitmap requires an exact match), so finding a candidate is a hash lookup
+ * instead of a scan over every pooled bitmap. The pool is bounded by a byte budget and drops the
+ * bitmaps of the least recently used bucket first.
+ */
+class BitmapPool {
+    // Do not hand out a bitmap more than this many times larger than needed, it would waste memory
+    // for as long as the decoded bitmap is alive.
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    private final LinkedHashMap<Key, ArrayDeque<Bitmap>> mBuckets = new LinkedHashMap<Key, ArrayDeque<Bitmap>>(16, 0.75f, true);
+    // Available allocation sizes per config with the number of pooled bitmaps for each, KitKat and newer only.
+    private final HashMap<Config, TreeMap<Integer, Integer>> mSizes = new HashMap<Config, TreeMap<Integer, Integer>>();
+    private final long mMaxSize;
+    private long mSize;
+
+    BitmapPool(long maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Adds a bitmap that is no longer displayed to the pool.
+     *
+     * @return true if the bitmap was pooled
+     */
+    synchronized boolean put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() == null) {
+            return false;
+        }
+
+        final int size = Cache.getBitmapSize(bitmap);
+        if (size > mMaxSize) {
+            return false;
+        }
+
+        final Key key = keyFor(bitmap.getConfig(), size, bitmap.getWidth(), bitmap.getHeight());
+        ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayDeque<Bitmap>();
+            mBuckets.put(key, bucket);
+        }
+
+        bucket.addLast(bitmap);
+        mSize += size;
+        if (Utils.hasKitKat()) {
+            incrementSize(key.config, size);
+        }
+
+        trimToSize(mMaxSize);
+        return true;
+    }
+
+    /**
+     * @param options - BitmapFactory.Options with out* options and inSampleSize populated
+     * @return a pooled bitmap that can be used for inBitmap, or null if there is none
+     */
+    synchronized Bitmap get(BitmapFactory.Options options) {
+        if (mSize == 0) {
+            return null;
+        }
+
+        final Config config = options.inPreferredConfig != null ? options.inPreferredConfig : Config.ARGB_8888;
+        if (!Utils.hasKitKat()) {
+            // On earlier versions, the dimensions must match exactly and the inSampleSize must be 1
+            if (options.inSampleSize > 1) {
+                return null;
+            }
+
+            return poll(keyFor(config, 0, options.outWidth, options.outHeight));
+        }
+
+        // From Android 4.4 (KitKat) onward we can re-use if the byte size of the new bitmap
+        // is smaller than the reusable bitmap candidate allocation byte count.
+        final int sampleSize = Math.max(1, options.inSampleSize);
+        final int width = options.outWidth / sampleSize;
+        final int height = options.outHeight / sampleSize;
+        final int byteCount = width * height * Cache.getBytesPerPixel(config);
+        if (byteCount <= 0) {
+            return null;
+        }
+
+        final TreeMap<Integer, Integer> sizes = mSizes.get(config);
+        if (sizes == null) {
+            return null;
+        }
+
+        final Integer size = sizes.ceilingKey(byteCount);
+        if (size == null || size > byteCount * MAX_SIZE_MULTIPLE) {
+            return null;
+        }
+
+        return poll(keyFor(config, size, 0, 0));
+    }
+
+    synchronized void clear() {
+        trimToSize(0);
+    }
+
+    private Bitmap poll(Key key) {
+        final ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            return null;
+        }
+
+        final Bitmap bitmap = bucket.pollLast();
+        if (bucket.isEmpty()) {
+            mBuckets.remove(key);
+        }
+
+        if (bitmap != null) {
+            removed(key, bitmap);
+        }
+
+        return bitmap != null && !bitmap.isRecycled() ? bitmap : null;
+    }
+
+    private void trimToSize(long maxSize) {
+        final Iterator<Map.Entry<Key, ArrayDeque<Bitmap>>> iterator = mBuckets.entrySet().iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            final Map.Entry<Key, ArrayDeque<Bitmap>> entry = iterator.next();
+            final ArrayDeque<Bitmap> bucket = entry.getValue();
+            while (mSize > maxSize && !bucket.isEmpty()) {
+                removed(entry.getKey(), bucket.pollFirst());
+            }
+
+            if (bucket.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void removed(Key key, Bitmap bitmap) {
+        final int size = key.size != 0 ? key.size : Cache.getBitmapSize(bitmap);
+        mSize -= size;
+        if (Utils.hasKitKat()) {
+            decrementSize(key.config, size);
+        }
+    }
+
+    private void incrementSize(Config config, int size) {
+        TreeMap<Integer, Integer> sizes = mSizes.get(config);
+        if (sizes == null) {
+            sizes = new TreeMap<Integer, Integer>();
+            mSizes.put(config, sizes);
+        }
+
+        final Integer count = sizes.get(size);
+        sizes.put(size, count == null ? 1 : count + 1);
+    }
+
+    private void decrementSize(Config config, int size) {
+        final TreeMap<Integer, Integer> sizes = mSizes.get(config);
+        if (sizes == null) {
+            return;
+        }
+
+        final Integer count = sizes.get(size);
+        if (count == null || count == 1) {
+            sizes.remove(size);
+        } else {
+            sizes.put(size, count - 1);
+        }
+    }
+
+    private static Key keyFor(Config config, int size, int width, int height) {
+        if (Utils.hasKitKat()) {
+            return new Key(config, size, 0, 0);
+        }
+
+        return new Key(config, 0, width, height);
+    }
+
+    private static final class Key {
+        final Config config;
+        final int size;
+        final int width;
+        final int height;
+
+        Key(Config config, int size, int width, int height) {
+            this.config = config;
+            this.size = size;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            final Key other = (Key) o;
+            return config == other.config && size == other.size && width == other.width && height == other.height;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = config.hashCode();
+            result = 31 * result + size;
+            result = 31 * result + width;
+            result = 31 * result + height;
+            return result;
+        }
+    }
+}
@@ -26,18 +26,16 @@ import android.graphics.BitmapFactory;
 import android.os.Build.VERSION_CODES;
 import android.os.Environment;
 import android.os.StatFs;
-import android.support.v4.util.LruCache;
 import android.util.Log;
 
 import java.io.File;
-import java.lang.ref.SoftReference;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Set;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class handles disk and memory caching of bitmaps in conjunction with the
@@ -52,16 +50,21 @@ public class Cache {
     // Default memory cache size in kilobytes
     private static final int DEFAULT_MEM_CACHE_SIZE = 1024 * 5; // 5MB
 
+    // Default size of the pool of bitmaps kept for inBitmap reuse in kilobytes
+    private static final int DEFAULT_BITMAP_POOL_SIZE = 1024 * 4; // 4MB
+
     // Constants to easily toggle various caches
     private static final boolean DEFAULT_MEM_CACHE_ENABLED = true;
     private static final boolean DEFAULT_DISK_CACHE_ENABLED = true;
 
+    // Number of independently locked segments of the memory cache, must be a power of two
+    private static final int MEM_CACHE_SEGMENTS = 8;
+
     private static Cache instance;
-    private HashMap<String, Integer> mMemoryCacheUsage;
-    private LruCache<String, Bitmap> mMemoryCache;
+    private volatile MemoryCache mMemoryCache;
     private CacheParams mParams;
 
-    private Set<SoftReference<Bitmap>> mReusableBitmaps;
+    private volatile BitmapPool mBitmapPool;
 
     /**
      * Create a new Cache object using the specified parameters. This should not be
@@ -96,9 +99,9 @@ public class Cache {
      */
     private void init(CacheParams cacheParams) {
         clearCache();
-        if (mReusableBitmaps != null) {
-            mReusableBitmaps.clear();
-            mReusableBitmaps = null;
+        if (mBitmapPool != null) {
+            mBitmapPool.clear();
+            mBitmapPool = null;
         }
 
         mParams = cacheParams;
@@ -109,47 +112,17 @@ public class Cache {
                 Log.v(TAG, "Memory cache created (size = " + mParams.memCacheSize + ")");
             }
 
-            // If we're running on Honeycomb or newer, create a set of reusable bitmaps that can be
-            // populated into the inBitmap field of BitmapFactory.Options. Note that the set is
-            // of SoftReferences which will actually not be very effective due to the garbage
-            // collector being aggressive clearing Soft/WeakReferences. A better approach
-            // would be to use a strongly references bitmaps, however this would require some
-            // balancing of memory usage between this set and the bitmap LruCache. It would also
-            // require knowledge of the expected size of the bitmaps. From Honeycomb to JellyBean
-            // the size would need to be precise, from KitKat onward the size would just need to
-            // be the upper bound (due to changes in how inBitmap can re-use bitmaps).
-            if (Utils.hasHoneycomb()) {
-                mReusableBitmaps =
-                        Collections.synchronizedSet(new HashSet<SoftReference<Bitmap>>());
+            // If we're running on Honeycomb or newer, create a pool of reusable bitmaps that can be
+            // populated into the inBitmap field of BitmapFactory.Options. Bitmaps evicted from the
+            // memory cache are held strongly up to bitmapPoolSize, so the garbage collector does not
+            // drop them before they can be reused. From Honeycomb to JellyBean the size needs to be
+            // precise, from KitKat onward the size just needs to be the upper bound (due to changes
+            // in how inBitmap can re-use bitmaps).
+            if (Utils.hasHoneycomb() && mParams.bitmapPoolSize > 0) {
+                mBitmapPool = new BitmapPool(mParams.bitmapPoolSize * 1024L);
             }
 
-            mMemoryCacheUsage = new HashMap<String, Integer>();
-            mMemoryCache = new LruCache<String, Bitmap>(mParams.memCacheSize) {
-
-                /**
-                 * Notify the removed entry that is no longer being cached
-                 */
-                @Override
-                protected void entryRemoved(boolean evicted, String key,
-                                            Bitmap oldValue, Bitmap newValue) {
-                    Integer count = mMemoryCacheUsage.get(key);
-                    if (Utils.hasHoneycomb() && (count == null || count == 0)) {
-                        // We're running on Honeycomb or later, so add the bitmap
-                        // to a SoftReference set for possible use with inBitmap later
-                        mReusableBitmaps.add(new SoftReference<Bitmap>(oldValue));
-                    }
-                }
-
-                /**
-                 * Measure item size in kilobytes rather than units which is more practical
-                 * for a bitmap cache
-                 */
-                @Override
-                protected int sizeOf(String key, Bitmap value) {
-                    final int bitmapSize = getBitmapSize(value) / 1024;
-                    return bitmapSize == 0 ? 1 : bitmapSize;
-                }
-            };
+            mMemoryCache = new MemoryCache(mParams.memCacheSize);
         }
     }
 
@@ -160,25 +133,39 @@ public class Cache {
      * @param value The bitmap drawable to store
      */
     public void addBitmapToCache(String data, Bitmap value) {
+        addBitmapToCache(data, value, true);
+    }
+
+    /**
+     * Adds a bitmap to the memory cache.
+     *
+     * @param data      Unique identifier for the bitmap to store
+     * @param value     The bitmap drawable to store
+     * @param displayed False for bitmaps loaded ahead of time, which are not shown anywhere yet
+     */
+    public void addBitmapToCache(String data, Bitmap value, boolean displayed) {
         if (data == null || value == null) {
             return;
         }
 
         // Add to memory cache
-        if (mMemoryCache != null) {
-            Bitmap currentValue = mMemoryCache.get(data);
-            // NOTE: If we have existing we probably loaded it sync so we don't want to add the new one,
-            // because this will make the previous bitmap free for reuse but it is used somewhere.
-            // Probably won't happen often.
-            if (currentValue == null) {
-                Integer count = mMemoryCacheUsage.get(data);
-                // NOTE: count should be null here.
-                mMemoryCacheUsage.put(data, count == null ? 1 : count + 1);
-                mMemoryCache.put(data, value);
-            }
+        final MemoryCache memoryCache = mMemoryCache;
+        if (memoryCache != null) {
+            memoryCache.addIfAbsent(data, value, displayed);
         }
     }
 
+    /**
+     * Check the memory cache without counting the bitmap as displayed.
+     *
+     * @param data Unique identifier for which item to check
+     * @return true if the bitmap is in the memory cache
+     */
+    public boolean isInMemCache(String data) {
+        final MemoryCache memoryCache = mMemoryCache;
+        return memoryCache != null && memoryCache.contains(data);
+    }
+
     /**
      * Get from memory cache.
      *
@@ -188,12 +175,9 @@ public class Cache {
     public Bitmap getBitmapFromMemCache(String data) {
         Bitmap memValue = null;
 
-        if (mMemoryCache != null) {
-            memValue = mMemoryCache.get(data);
-            if (memValue != null) {
-                Integer count = mMemoryCacheUsage.get(data);
-                mMemoryCacheUsage.put(data, count == null ? 1 : count + 1);
-            }
+        final MemoryCache memoryCache = mMemoryCache;
+        if (memoryCache != null) {
+            memValue = memoryCache.get(data);
         }
 
         if (Worker.debuggable > 0 && memValue != null) {
@@ -204,15 +188,9 @@ public class Cache {
     }
 
     public void reduceDisplayedCounter(String uri) {
-        if (mMemoryCache != null) {
-            Integer count = mMemoryCacheUsage.get(uri);
-            if (count != null) {
-                if (count == 1) {
-                    mMemoryCacheUsage.remove(uri);
-                } else {
-                    mMemoryCacheUsage.put(uri, count - 1);
-                }
-            }
+        final MemoryCache memoryCache = mMemoryCache;
+        if (memoryCache != null) {
+            memoryCache.reduceDisplayedCounter(uri);
         }
     }
 
@@ -221,36 +199,12 @@ public class Cache {
      * @return Bitmap that case be used for inBitmap
      */
     protected Bitmap getBitmapFromReusableSet(BitmapFactory.Options options) {
-        //BEGIN_INCLUDE(get_bitmap_from_reusable_set)
-        Bitmap bitmap = null;
-
-        if (mReusableBitmaps != null && !mReusableBitmaps.isEmpty()) {
-            synchronized (mReusableBitmaps) {
-                final Iterator<SoftReference<Bitmap>> iterator = mReusableBitmaps.iterator();
-                Bitmap item;
-
-                while (iterator.hasNext()) {
-                    item = iterator.next().get();
-
-                    if (null != item && item.isMutable()) {
-                        // Check to see it the item can be used for inBitmap
-                        if (canUseForInBitmap(item, options)) {
-                            bitmap = item;
-
-                            // Remove from reusable set so it can't be used again
-                            iterator.remove();
-                            break;
-                        }
-                    } else {
-                        // Remove from the set if the reference has been cleared.
-                        iterator.remove();
-                    }
-                }
-            }
+        final BitmapPool bitmapPool = mBitmapPool;
+        if (bitmapPool == null) {
+            return null;
         }
 
-        return bitmap;
-        //END_INCLUDE(get_bitmap_from_reusable_set)
+        return bitmapPool.get(options);
     }
 
     /**
@@ -258,18 +212,158 @@ public class Cache {
      * this includes disk access so this should not be executed on the main/UI thread.
      */
     public void clearCache() {
-        if (mMemoryCache != null) {
-            mMemoryCache.evictAll();
+        final MemoryCache memoryCache = mMemoryCache;
+        mMemoryCache = null;
+        if (memoryCache != null) {
+            memoryCache.evictAll();
             if (Worker.debuggable > 0) {
                 Log.v(TAG, "Memory cache cleared");
             }
         }
-        if (mMemoryCacheUsage != null) {
-            mMemoryCacheUsage.clear();
+    }
+
+    /**
+     * A LRU bitmap cache split into segments by key, each with its own lock, so that decode workers
+     * adding bitmaps and the UI thread reading them do not serialize on a single monitor. The
+     * displayed counter of a key is kept in the same segment as its bitmap, so eviction always sees
+     * a consistent counter and only bitmaps that are not displayed anywhere are offered for reuse.
+     * The size budget is shared between the segments.
+     */
+    private class MemoryCache {
+        private final Segment[] mSegments = new Segment[MEM_CACHE_SEGMENTS];
+        private final AtomicInteger mSize = new AtomicInteger();
+        private final int mMaxSize;
+
+        MemoryCache(int maxSize) {
+            mMaxSize = maxSize;
+            for (int i = 0; i < MEM_CACHE_SEGMENTS; i++) {
+                mSegments[i] = new Segment(i);
+            }
         }
 
-        mMemoryCacheUsage = null;
-        mMemoryCache = null;
+        private Segment segmentFor(String key) {
+            int hash = key.hashCode();
+            hash ^= (hash >>> 16);
+            return mSegments[hash & (MEM_CACHE_SEGMENTS - 1)];
+        }
+
+        Bitmap get(String key) {
+            final Segment segment = segmentFor(key);
+            synchronized (segment) {
+                Bitmap value = segment.map.get(key);
+                if (value != null) {
+                    segment.incrementUsage(key);
+                }
+                return value;
+            }
+        }
+
+        boolean contains(String key) {
+            final Segment segment = segmentFor(key);
+            synchronized (segment) {
+                return segment.map.containsKey(key);
+            }
+        }
+
+        void addIfAbsent(String key, Bitmap value, boolean displayed) {
+            final Segment segment = segmentFor(key);
+            synchronized (segment) {
+                // NOTE: If we have existing we probably loaded it sync so we don't want to add the new one,
+                // because this will make the previous bitmap free for reuse but it is used somewhere.
+                // Probably won't happen often.
+                if (segment.map.containsKey(key)) {
+                    return;
+                }
+
+                // NOTE: count should be 0 here.
+                if (displayed) {
+                    segment.incrementUsage(key);
+                }
+                segment.map.put(key, value);
+                mSize.addAndGet(sizeOf(value));
+            }
+
+            trimToSize(segment.index);
+        }
+
+        void reduceDisplayedCounter(String key) {
+            final Segment segment = segmentFor(key);
+            synchronized (segment) {
+                Integer count = segment.usage.get(key);
+                if (count != null) {
+                    if (count == 1) {
+                        segment.usage.remove(key);
+                    } else {
+                        segment.usage.put(key, count - 1);
+                    }
+                }
+            }
+        }
+
+        void evictAll() {
+            for (Segment segment : mSegments) {
+                synchronized (segment) {
+                    evict(segment, Integer.MIN_VALUE);
+                    segment.usage.clear();
+                }
+            }
+        }
+
+        /**
+         * Evicts the least recently used entries, starting from the segment that has just grown,
+         * until the total size is within the budget. Only one segment lock is held at a time.
+         */
+        private void trimToSize(int startIndex) {
+            for (int i = 0; i < MEM_CACHE_SEGMENTS && mSize.get() > mMaxSize; i++) {
+                final Segment segment = mSegments[(startIndex + i) & (MEM_CACHE_SEGMENTS - 1)];
+                synchronized (segment) {
+                    evict(segment, mMaxSize);
+                }
+            }
+        }
+
+        // Must be called while holding the segment lock.
+        private void evict(Segment segment, int maxSize) {
+            final Iterator<Map.Entry<String, Bitmap>> iterator = segment.map.entrySet().iterator();
+            while (mSize.get() > maxSize && iterator.hasNext()) {
+                final Map.Entry<String, Bitmap> entry = iterator.next();
+                iterator.remove();
+                mSize.addAndGet(-sizeOf(entry.getValue()));
+
+                final Integer count = segment.usage.get(entry.getKey());
+                final BitmapPool bitmapPool = mBitmapPool;
+                if (bitmapPool != null && (count == null || count == 0)) {
+                    // We're running on Honeycomb or later, so add the bitmap
+                    // to the pool for possible use with inBitmap later
+                    bitmapPool.put(entry.getValue());
+                }
+            }
+        }
+
+        /**
+         * Measure item size in kilobytes rather than units which is more practical
+         * for a bitmap cache
+         */
+        private int sizeOf(Bitmap value) {
+            final int bitmapSize = getBitmapSize(value) / 1024;
+            return bitmapSize == 0 ? 1 : bitmapSize;
+        }
+    }
+
+    private static class Segment {
+        final int index;
+        // Access ordered, so iteration starts from the least recently used entry
+        final LinkedHashMap<String, Bitmap> map = new LinkedHashMap<String, Bitmap>(16, 0.75f, true);
+        final HashMap<String, Integer> usage = new HashMap<String, Integer>();
+
+        Segment(int index) {
+            this.index = index;
+        }
+
+        void incrementUsage(String key) {
+            Integer count = usage.get(key);
+            usage.put(key, count == null ? 1 : count + 1);
+        }
     }
 
     /**
@@ -279,6 +373,8 @@ public class Cache {
         public int memCacheSize = DEFAULT_MEM_CACHE_SIZE;
         public boolean memoryCacheEnabled = DEFAULT_MEM_CACHE_ENABLED;
         public boolean diskCacheEnabled = DEFAULT_DISK_CACHE_ENABLED;
+        // Size in kilobytes of the pool of bitmaps kept for inBitmap reuse, 0 disables the pool.
+        public int bitmapPoolSize = DEFAULT_BITMAP_POOL_SIZE;
 
         /**
          * Sets the memory cache size based on a percentage of the max available VM memory.
@@ -302,40 +398,17 @@ public class Cache {
         }
     }
 
-    /**
-     * @param candidate     - Bitmap to check
-     * @param targetOptions - Options that have the out* value populated
-     * @return true if <code>candidate</code> can be used for inBitmap re-use with
-     * <code>targetOptions</code>
-     */
-    @TargetApi(VERSION_CODES.KITKAT)
-    private static boolean canUseForInBitmap(
-            Bitmap candidate, BitmapFactory.Options targetOptions) {
-        //BEGIN_INCLUDE(can_use_for_inbitmap)
-        if (!Utils.hasKitKat()) {
-            // On earlier versions, the dimensions must match exactly and the inSampleSize must be 1
-            return candidate.getWidth() == targetOptions.outWidth
-                    && candidate.getHeight() == targetOptions.outHeight
-                    && targetOptions.inSampleSize == 1;
-        }
-
-        // From Android 4.4 (KitKat) onward we can re-use if the byte size of the new bitmap
-        // is smaller than the reusable bitmap candidate allocation byte count.
-        int width = targetOptions.outWidth / targetOptions.inSampleSize;
-        int height = targetOptions.outHeight / targetOptions.inSampleSize;
-        int byteCount = width * height * getBytesPerPixel(candidate.getConfig());
-        return byteCount <= candidate.getAllocationByteCount();
-        //END_INCLUDE(can_use_for_inbitmap)
-    }
-
     /**
      * Return the byte usage per pixel of a bitmap based on its configuration.
      *
      * @param config The bitmap configuration.
      * @return The byte usage per pixel.
      */
-    private static int getBytesPerPixel(Config config) {
-        if (config == Config.ARGB_8888) {
+    @TargetApi(VERSION_CODES.O)
+    static int getBytesPerPixel(Config config) {
+        if (Utils.hasO() && config == Config.RGBA_F16) {
+            return 8;
+        } else if (config == Config.ARGB_8888) {
             return 4;
         } else if (config == Config.RGB_565) {
             return 2;
@@ -402,8 +475,14 @@ public class Cache {
      * @param bitmap
      * @return size in bytes
      */
-    @TargetApi(VERSION_CODES.KITKAT)
+    @TargetApi(VERSION_CODES.O)
     public static int getBitmapSize(Bitmap bitmap) {
+        // Hardware bitmaps live in graphics memory, count what they occupy there so they still
+        // take their share of the cache budget.
+        if (Utils.hasO() && bitmap.getConfig() == Config.HARDWARE) {
+            return bitmap.getWidth() * bitmap.getHeight() * 4;
+        }
+
         // From KitKat onward use getAllocationByteCount() as allocated bytes can potentially be
         // larger than bitmap byte count.
         if (Utils.hasKitKat()) {
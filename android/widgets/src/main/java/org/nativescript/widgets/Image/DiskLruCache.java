@@ -16,7 +16,6 @@
 
 package org.nativescript.widgets.image;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.EOFException;
@@ -107,8 +106,12 @@ public final class DiskLruCache implements Closeable {
     private static final String DIRTY = "DIRTY";
     private static final String REMOVE = "REMOVE";
     private static final String READ = "READ";
+    /** How often get() retries when the entry is committed while its files are being opened. */
+    private static final int MAX_READ_ATTEMPTS = 3;
 
     private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // Maps every byte to the char with the same value, like the journal has always been read
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
     private static final int IO_BUFFER_SIZE = 8 * 1024;
 
     /*
@@ -233,6 +236,72 @@ public final class DiskLruCache implements Closeable {
         return result.toString();
     }
 
+    /**
+     * Reads journal lines from large chunks of the stream. Same semantics as
+     * {@link #readAsciiLine(InputStream)} without a read() call per byte.
+     */
+    private static final class JournalReader implements Closeable {
+        private final InputStream in;
+        private final byte[] buffer = new byte[IO_BUFFER_SIZE];
+        private int pos;
+        private int end;
+
+        JournalReader(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * @throws EOFException if the stream is exhausted before the next newline character.
+         */
+        String readLine() throws IOException {
+            StringBuilder result = null;
+            while (true) {
+                if (pos == end) {
+                    int count = in.read(buffer);
+                    if (count == -1) {
+                        throw new EOFException();
+                    }
+                    pos = 0;
+                    end = count;
+                }
+
+                for (int i = pos; i < end; i++) {
+                    if (buffer[i] == '\n') {
+                        int lineEnd = i;
+                        String line;
+                        if (result == null) {
+                            if (lineEnd > pos && buffer[lineEnd - 1] == '\r') {
+                                lineEnd--;
+                            }
+                            line = new String(buffer, pos, lineEnd - pos, ISO_8859_1);
+                        } else {
+                            result.append(new String(buffer, pos, lineEnd - pos, ISO_8859_1));
+                            int length = result.length();
+                            if (length > 0 && result.charAt(length - 1) == '\r') {
+                                result.setLength(length - 1);
+                            }
+                            line = result.toString();
+                        }
+                        pos = i + 1;
+                        return line;
+                    }
+                }
+
+                // The line continues in the next chunk
+                if (result == null) {
+                    result = new StringBuilder(80);
+                }
+                result.append(new String(buffer, pos, end - pos, ISO_8859_1));
+                pos = end;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
     /**
      * Closes 'closeable', ignoring any checked exceptions. Does nothing if 'closeable' is null.
      */
@@ -319,8 +388,13 @@ public final class DiskLruCache implements Closeable {
             try {
                 cache.readJournal();
                 cache.processJournal();
-                cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
-                        IO_BUFFER_SIZE);
+                if (cache.journalRebuildRequired()) {
+                    cache.rebuildJournal();
+                    cache.redundantOpCount = 0;
+                } else {
+                    cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
+                            IO_BUFFER_SIZE);
+                }
                 return cache;
             } catch (IOException journalIsCorrupt) {
 //                System.logW("DiskLruCache " + directory + " is corrupt: "
@@ -337,13 +411,13 @@ public final class DiskLruCache implements Closeable {
     }
 
     private void readJournal() throws IOException {
-        InputStream in = new BufferedInputStream(new FileInputStream(journalFile), IO_BUFFER_SIZE);
+        JournalReader in = new JournalReader(new FileInputStream(journalFile));
         try {
-            String magic = readAsciiLine(in);
-            String version = readAsciiLine(in);
-            String appVersionString = readAsciiLine(in);
-            String valueCountString = readAsciiLine(in);
-            String blank = readAsciiLine(in);
+            String magic = in.readLine();
+            String version = in.readLine();
+            String appVersionString = in.readLine();
+            String valueCountString = in.readLine();
+            String blank = in.readLine();
             if (!MAGIC.equals(magic)
                     || !VERSION_1.equals(version)
                     || !Integer.toString(appVersion).equals(appVersionString)
@@ -353,26 +427,38 @@ public final class DiskLruCache implements Closeable {
                         + magic + ", " + version + ", " + valueCountString + ", " + blank + "]");
             }
 
+            int lineCount = 0;
             while (true) {
                 try {
-                    readJournalLine(readAsciiLine(in));
+                    readJournalLine(in.readLine());
+                    lineCount++;
                 } catch (EOFException endOfJournal) {
                     break;
                 }
             }
+
+            // Every line beyond one per live entry is redundant, so a journal that grew over many
+            // sessions is compacted on open instead of only after 2000 new operations.
+            redundantOpCount = lineCount - lruEntries.size();
         } finally {
             closeQuietly(in);
         }
     }
 
     private void readJournalLine(String line) throws IOException {
-        String[] parts = line.split(" ");
-        if (parts.length < 2) {
+        int firstSpace = line.indexOf(' ');
+        if (firstSpace == -1) {
             throw new IOException("unexpected journal line: " + line);
         }
 
-        String key = parts[1];
-        if (parts[0].equals(REMOVE) && parts.length == 2) {
+        int keyBegin = firstSpace + 1;
+        int secondSpace = line.indexOf(' ', keyBegin);
+        String key = secondSpace == -1 ? line.substring(keyBegin) : line.substring(keyBegin, secondSpace);
+        if (key.length() == 0) {
+            throw new IOException("unexpected journal line: " + line);
+        }
+
+        if (secondSpace == -1 && firstSpace == REMOVE.length() && line.startsWith(REMOVE)) {
             lruEntries.remove(key);
             return;
         }
@@ -383,13 +469,13 @@ public final class DiskLruCache implements Closeable {
             lruEntries.put(key, entry);
         }
 
-        if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
+        if (secondSpace != -1 && firstSpace == CLEAN.length() && line.startsWith(CLEAN)) {
             entry.readable = true;
             entry.currentEditor = null;
-            entry.setLengths(copyOfRange(parts, 2, parts.length));
-        } else if (parts[0].equals(DIRTY) && parts.length == 2) {
+            entry.setLengths(line.substring(secondSpace + 1).split(" "));
+        } else if (secondSpace == -1 && firstSpace == DIRTY.length() && line.startsWith(DIRTY)) {
             entry.currentEditor = new Editor(entry);
-        } else if (parts[0].equals(READ) && parts.length == 2) {
+        } else if (secondSpace == -1 && firstSpace == READ.length() && line.startsWith(READ)) {
             // this work was already done by calling lruEntries.get()
         } else {
             throw new IOException("unexpected journal line: " + line);
@@ -469,41 +555,66 @@ public final class DiskLruCache implements Closeable {
      * Returns a snapshot of the entry named {@code key}, or null if it doesn't
      * exist is not currently readable. If a value is returned, it is moved to
      * the head of the LRU queue.
+     *
+     * <p>The entry files are opened without holding the cache lock, so hits on
+     * different entries don't wait for each other or for a commit in progress.
      */
-    public synchronized Snapshot get(String key) throws IOException {
-        checkNotClosed();
+    public Snapshot get(String key) throws IOException {
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (entry == null) {
-            return null;
-        }
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            final Entry entry;
+            final long sequenceNumber;
+            synchronized (this) {
+                checkNotClosed();
+                entry = lruEntries.get(key);
+                if (entry == null || !entry.readable) {
+                    return null;
+                }
+                sequenceNumber = entry.sequenceNumber;
+            }
 
-        if (!entry.readable) {
-            return null;
-        }
+            /*
+             * Open all streams eagerly to guarantee that we see a single published
+             * snapshot. If we opened streams lazily then the streams could come
+             * from different edits.
+             */
+            InputStream[] ins = new InputStream[valueCount];
+            try {
+                for (int i = 0; i < valueCount; i++) {
+                    ins[i] = new FileInputStream(entry.getCleanFile(i));
+                }
+            } catch (FileNotFoundException e) {
+                // removed or evicted meanwhile, or a file must have been deleted manually!
+                closeStreams(ins);
+                return null;
+            }
 
-        /*
-         * Open all streams eagerly to guarantee that we see a single published
-         * snapshot. If we opened streams lazily then the streams could come
-         * from different edits.
-         */
-        InputStream[] ins = new InputStream[valueCount];
-        try {
-            for (int i = 0; i < valueCount; i++) {
-                ins[i] = new FileInputStream(entry.getCleanFile(i));
+            synchronized (this) {
+                // An edit committed while the files were opened may have mixed old and new values,
+                // read the entry again in that case.
+                if (journalWriter != null && lruEntries.get(key) == entry && entry.sequenceNumber == sequenceNumber) {
+                    redundantOpCount++;
+                    journalWriter.append(READ + ' ' + key + '\n');
+                    if (journalRebuildRequired()) {
+                        executorService.submit(cleanupCallable);
+                    }
+
+                    return new Snapshot(key, sequenceNumber, ins);
+                }
             }
-        } catch (FileNotFoundException e) {
-            // a file must have been deleted manually!
-            return null;
-        }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+            closeStreams(ins);
         }
 
-        return new Snapshot(key, entry.sequenceNumber, ins);
+        return null;
+    }
+
+    private static void closeStreams(InputStream[] ins) {
+        for (InputStream in : ins) {
+            if (in != null) {
+                closeQuietly(in);
+            }
+        }
     }
 
     /**
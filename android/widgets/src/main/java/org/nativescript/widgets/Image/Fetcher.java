@@ -22,6 +22,8 @@ import android.content.res.Resources;
 import android.graphics.Matrix;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
 import android.media.ExifInterface;
 import android.os.Build;
 import android.util.Log;
@@ -31,14 +33,24 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.nativescript.widgets.Async;
 
 /**
  * A simple subclass of {@link Worker} that fetch and resize images from a file, resource or URL.
@@ -47,6 +59,17 @@ public class Fetcher extends Worker {
     private static final int HTTP_CACHE_SIZE = 10 * 1024 * 1024; // 10MB
     private static final String HTTP_CACHE_DIR = "http";
     private static final int IO_BUFFER_SIZE = 8 * 1024;
+    private static final int DOWNLOAD_BUFFER_SIZE = 32 * 1024;
+    // One buffer per download thread is enough, the rest are left to the GC
+    private static final int DOWNLOAD_BUFFER_POOL_SIZE = 4;
+    private static final ArrayDeque<byte[]> sBufferPool = new ArrayDeque<byte[]>(DOWNLOAD_BUFFER_POOL_SIZE);
+    private static final int THUMBNAIL_CACHE_SIZE = 10 * 1024 * 1024; // 10MB
+    private static final String THUMBNAIL_CACHE_DIR = "thumbnails";
+    // Larger bitmaps take longer to compress than the downloaded image takes to decode again.
+    private static final int THUMBNAIL_MAX_BYTES = 1024 * 1024; // 1MB
+    // Opaque thumbnails are stored as WEBP, the ones with alpha as PNG
+    private static final int THUMBNAIL_MAGIC = 0x4e535449;
+    private static final int THUMBNAIL_QUALITY = 90;
 
     private static int mDeviceWidthPixels;
     private static int mDeviceHeightPixels;
@@ -55,9 +78,16 @@ public class Fetcher extends Worker {
     private DiskLruCache mHttpDiskCache;
     private boolean mHttpDiskCacheStarting = true;
     private final Object mHttpDiskCacheLock = new Object();
+    // Downloads in progress by disk cache key
+    private final ConcurrentHashMap<String, FutureTask<Boolean>> mDownloads = new ConcurrentHashMap<String, FutureTask<Boolean>>();
     private static final int DISK_CACHE_INDEX = 0;
 
+    private File mThumbnailCacheDir;
+    private DiskLruCache mThumbnailDiskCache;
+    private final Object mThumbnailDiskCacheLock = new Object();
+
     private final String mPackageName;
+    private volatile OnDownloadProgressListener mDownloadProgressListener;
     private static Fetcher instance;
 
     public static Fetcher getInstance(Context context) {
@@ -76,6 +106,7 @@ public class Fetcher extends Worker {
     private Fetcher(Context context) {
         super(context);
         mHttpCacheDir = Cache.getDiskCacheDir(context, HTTP_CACHE_DIR);
+        mThumbnailCacheDir = Cache.getDiskCacheDir(context, THUMBNAIL_CACHE_DIR);
         mPackageName = context.getPackageName();
         mDeviceWidthPixels  = (int) context.getResources().getDisplayMetrics().widthPixels;
         mDeviceHeightPixels  = (int) context.getResources().getDisplayMetrics().heightPixels;
@@ -98,7 +129,22 @@ public class Fetcher extends Worker {
                 }
             }
             mHttpDiskCacheStarting = false;
-            mHttpDiskCacheLock.notifyAll();
+        }
+
+        if (!mThumbnailCacheDir.exists()) {
+            mThumbnailCacheDir.mkdirs();
+        }
+        synchronized (mThumbnailDiskCacheLock) {
+            if (mThumbnailDiskCache == null && Cache.getUsableSpace(mThumbnailCacheDir) > THUMBNAIL_CACHE_SIZE) {
+                try {
+                    mThumbnailDiskCache = DiskLruCache.open(mThumbnailCacheDir, 1, 1, THUMBNAIL_CACHE_SIZE);
+                    if (debuggable > 0) {
+                        Log.v(TAG, "Thumbnail cache initialized");
+                    }
+                } catch (IOException e) {
+                    mThumbnailDiskCache = null;
+                }
+            }
         }
     }
 
@@ -119,6 +165,19 @@ public class Fetcher extends Worker {
                 mHttpDiskCacheStarting = true;
             }
         }
+        synchronized (mThumbnailDiskCacheLock) {
+            if (mThumbnailDiskCache != null && !mThumbnailDiskCache.isClosed()) {
+                try {
+                    mThumbnailDiskCache.delete();
+                    if (debuggable > 0) {
+                        Log.v(TAG, "Thumbnail cache cleared");
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "clearCacheInternal - " + e);
+                }
+                mThumbnailDiskCache = null;
+            }
+        }
     }
 
     @Override
@@ -135,6 +194,15 @@ public class Fetcher extends Worker {
                 }
             }
         }
+        synchronized (mThumbnailDiskCacheLock) {
+            if (mThumbnailDiskCache != null) {
+                try {
+                    mThumbnailDiskCache.flush();
+                } catch (IOException e) {
+                    Log.e(TAG, "flush - " + e);
+                }
+            }
+        }
     }
 
     @Override
@@ -154,6 +222,18 @@ public class Fetcher extends Worker {
                 }
             }
         }
+        synchronized (mThumbnailDiskCacheLock) {
+            if (mThumbnailDiskCache != null) {
+                try {
+                    if (!mThumbnailDiskCache.isClosed()) {
+                        mThumbnailDiskCache.close();
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "closeCacheInternal - " + e);
+                }
+                mThumbnailDiskCache = null;
+            }
+        }
     }
 
     /**
@@ -163,79 +243,374 @@ public class Fetcher extends Worker {
      * @param data The data to load the bitmap, in this case, a regular http URL
      * @return The downloaded and resized bitmap
      */
-    private Bitmap processHttp(String data, int decodeWidth, int decodeHeight, boolean keepAspectRatio) {
+    private Bitmap processHttp(String data, int decodeWidth, int decodeHeight, boolean keepAspectRatio,
+            DecodeOptions options) {
+        final Rect region = options != null ? options.region : null;
+        final int decodeConfig = options != null ? options.config : 0;
+        // The already scaled and rotated bitmap may be on disk from a previous decode
+        final String thumbnailKey = createThumbnailKey(data, decodeWidth, decodeHeight, keepAspectRatio, options);
+        final Bitmap thumbnail = readThumbnail(thumbnailKey, getCache());
+        if (thumbnail != null) {
+            return thumbnail;
+        }
+
         final String key = Cache.hashKeyForDisk(data);
         FileDescriptor fileDescriptor = null;
         FileInputStream fileInputStream = null;
         DiskLruCache.Snapshot snapshot;
+        boolean entryBusy = false;
+        final DiskLruCache diskCache;
         synchronized (mHttpDiskCacheLock) {
-            // Wait for disk cache to initialize
-            while (mHttpDiskCacheStarting) {
+            diskCache = mHttpDiskCacheStarting ? null : mHttpDiskCache;
+        }
+
+        if (diskCache == null) {
+            // Don't hold the image back while the cache is still reading its journal, download it
+            // directly and store it if the cache is ready by then.
+            final Bitmap bitmap = processHttpNoCache(data, decodeWidth, decodeHeight, keepAspectRatio, options, true, null);
+            if (bitmap != null) {
+                writeThumbnail(thumbnailKey, bitmap);
+            }
+            return bitmap;
+        }
+
+        // The lock only guards the cache lifecycle, DiskLruCache is thread-safe on its own, so
+        // different urls download in parallel. If the cache is closed meanwhile we get IllegalStateException.
+        try {
+            snapshot = diskCache.get(key);
+            if (snapshot == null) {
+                if (downloadToDiskCache(diskCache, data, key)) {
+                    snapshot = diskCache.get(key);
+                } else {
+                    entryBusy = true;
+                }
+            }
+            if (snapshot != null) {
+                fileInputStream = (FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX);
+                fileDescriptor = fileInputStream.getFD();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "processHttp - " + e);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "processHttp - " + e);
+        } finally {
+            if (fileDescriptor == null && fileInputStream != null) {
                 try {
-                    mHttpDiskCacheLock.wait();
-                } catch (InterruptedException e) {
+                    fileInputStream.close();
+                } catch (IOException e) {
                 }
             }
+        }
 
-            if (mHttpDiskCache != null) {
+        if (entryBusy) {
+            // Another writer holds the cache entry, e.g. storeInHttpCache for the same url, don't fail the
+            // load on it but download without the cache
+            final Bitmap bitmap = processHttpNoCache(data, decodeWidth, decodeHeight, keepAspectRatio, options, false, null);
+            if (bitmap != null) {
+                writeThumbnail(thumbnailKey, bitmap);
+            }
+            return bitmap;
+        }
+
+        Bitmap bitmap = null;
+        if (fileDescriptor != null) {
+            if (region != null) {
+                bitmap = decodeSampledBitmapRegionFromDescriptor(fileDescriptor, region, decodeWidth, decodeHeight,
+                        keepAspectRatio, getCache());
+            } else {
+                bitmap = decodeSampledBitmapFromDescriptor(fileDescriptor, decodeWidth, decodeHeight, keepAspectRatio,
+                        getCache(), decodeConfig);
+            }
+        }
+        if (fileInputStream != null) {
+            try {
+                fileInputStream.close();
+            } catch (IOException e) {
+            }
+        }
+        if (bitmap != null) {
+            writeThumbnail(thumbnailKey, bitmap);
+        }
+        return bitmap;
+    }
+
+    private static String createThumbnailKey(String data, int decodeWidth, int decodeHeight, boolean keepAspectRatio,
+            DecodeOptions options) {
+        return Cache.hashKeyForDisk(createCacheUri(data, decodeHeight, decodeWidth, options)
+                + (keepAspectRatio ? "" : "stretch%%"));
+    }
+
+    /**
+     * Writes an image downloaded while the HTTP cache was not ready into the cache, if it is ready now.
+     */
+    private void storeInHttpCache(String data, byte[] buffer, int length) {
+        final DiskLruCache diskCache;
+        synchronized (mHttpDiskCacheLock) {
+            diskCache = mHttpDiskCacheStarting ? null : mHttpDiskCache;
+        }
+        if (diskCache == null) {
+            return;
+        }
+
+        DiskLruCache.Editor editor = null;
+        OutputStream out = null;
+        try {
+            // null if the same url is being downloaded into the cache already
+            editor = diskCache.edit(Cache.hashKeyForDisk(data));
+            if (editor == null) {
+                return;
+            }
+            out = editor.newOutputStream(DISK_CACHE_INDEX);
+            out.write(buffer, 0, length);
+            out.close();
+            out = null;
+            editor.commit();
+            editor = null;
+        } catch (IOException e) {
+            Log.e(TAG, "storeInHttpCache - " + e);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "storeInHttpCache - " + e);
+        } finally {
+            DiskLruCache.closeQuietly(out);
+            if (editor != null) {
                 try {
-                    snapshot = mHttpDiskCache.get(key);
-                    if (snapshot == null) {
-                        if (debuggable > 0) {
-                            Log.v(TAG, "processBitmap, not found in http cache, downloading...");
-                        }
-                        DiskLruCache.Editor editor = mHttpDiskCache.edit(key);
-                        if (editor != null) {
-                            if (downloadUrlToStream(data, editor.newOutputStream(DISK_CACHE_INDEX))) {
-                                editor.commit();
-                            } else {
-                                editor.abort();
-                            }
-                        }
-                        snapshot = mHttpDiskCache.get(key);
-                    }
-                    if (snapshot != null) {
-                        fileInputStream = (FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX);
-                        fileDescriptor = fileInputStream.getFD();
-                    }
+                    editor.abort();
                 } catch (IOException e) {
-                    Log.e(TAG, "processHttp - " + e);
                 } catch (IllegalStateException e) {
-                    Log.e(TAG, "processHttp - " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Downloads the url into the disk cache entry for key. Concurrent requests for the same key
+     * wait for the download already in flight instead of starting another one.
+     *
+     * @return false if the entry is being written by someone else and could not be downloaded into
+     * @throws IOException if the download failed
+     */
+    private boolean downloadToDiskCache(final DiskLruCache diskCache, final String data, final String key) throws IOException {
+        final FutureTask<Boolean> download = new FutureTask<Boolean>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                // Another request may have completed the entry after our lookup
+                final DiskLruCache.Snapshot snapshot = diskCache.get(key);
+                if (snapshot != null) {
+                    snapshot.close();
+                    return true;
+                }
+
+                if (debuggable > 0) {
+                    Log.v(TAG, "processBitmap, not found in http cache, downloading...");
+                }
+                DiskLruCache.Editor editor = diskCache.edit(key);
+                if (editor == null) {
+                    return false;
+                }
+
+                boolean committed = false;
+                try {
+                    if (!downloadUrlToStream(data, editor.newOutputStream(DISK_CACHE_INDEX))) {
+                        throw new IOException("Failed to download " + data);
+                    }
+                    editor.commit();
+                    committed = true;
                 } finally {
-                    if (fileDescriptor == null && fileInputStream != null) {
+                    // leaving the editor open would keep the entry locked for every later request
+                    if (!committed) {
                         try {
-                            fileInputStream.close();
+                            editor.abort();
                         } catch (IOException e) {
+                        } catch (IllegalStateException e) {
                         }
                     }
                 }
+                return true;
+            }
+        });
+
+        FutureTask<Boolean> inFlight = mDownloads.putIfAbsent(key, download);
+        if (inFlight == null) {
+            inFlight = download;
+            try {
+                download.run();
+            } finally {
+                mDownloads.remove(key, download);
             }
         }
 
-        Bitmap bitmap = null;
-        if (fileDescriptor != null) {
-            bitmap = decodeSampledBitmapFromDescriptor(fileDescriptor, decodeWidth, decodeHeight, keepAspectRatio,
-                    getCache());
+        try {
+            return inFlight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("downloadToDiskCache - interrupted while waiting for " + data);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("downloadToDiskCache - " + cause);
         }
-        if (fileInputStream != null) {
-            try {
-                fileInputStream.close();
-            } catch (IOException e) {
+    }
+
+    /**
+     * Reads a decoded bitmap stored by {@link #writeThumbnail(String, Bitmap)}. The image is decoded
+     * straight from the cache file, into a bitmap from the reusable pool when one fits.
+     *
+     * @return The bitmap or null if not found in the thumbnail cache
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private Bitmap readThumbnail(String key, Cache cache) {
+        final DiskLruCache diskCache;
+        synchronized (mThumbnailDiskCacheLock) {
+            diskCache = mThumbnailDiskCache;
+        }
+        if (diskCache == null) {
+            return null;
+        }
+
+        // Like the HTTP cache, the lock only guards the cache lifecycle so thumbnail hits are read in parallel.
+        DiskLruCache.Snapshot snapshot = null;
+        try {
+            snapshot = diskCache.get(key);
+            if (snapshot == null) {
+                return null;
+            }
+
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(snapshot.getInputStream(DISK_CACHE_INDEX), IO_BUFFER_SIZE));
+            if (in.readInt() != THUMBNAIL_MAGIC) {
+                return null;
+            }
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.outWidth = in.readInt();
+            options.outHeight = in.readInt();
+            options.inPreferredConfig = Bitmap.Config.valueOf(in.readUTF());
+            final boolean hasAlpha = in.readBoolean();
+            final boolean premultiplied = in.readBoolean();
+            options.inSampleSize = 1;
+
+            // Before KitKat inBitmap needs an exact size match and does not support WEBP
+            if (Utils.hasKitKat()) {
+                options.inPremultiplied = premultiplied;
+                addInBitmapOptions(options, cache);
+            }
+
+            final Bitmap bitmap = BitmapFactory.decodeStream(in, null, options);
+            if (bitmap == null) {
+                return null;
+            }
+
+            bitmap.setHasAlpha(hasAlpha);
+            if (debuggable > 0) {
+                Log.v(TAG, "Thumbnail cache hit");
+            }
+            return bitmap;
+        } catch (IOException e) {
+            Log.e(TAG, "readThumbnail - " + e);
+        } catch (RuntimeException e) {
+            // Corrupted entry or an inBitmap that does not fit, e.g. an unknown config
+            Log.e(TAG, "readThumbnail - " + e);
+        } finally {
+            if (snapshot != null) {
+                snapshot.close();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stores a decoded bitmap compressed, so that a later cache miss for the same uri and decode
+     * size does not have to decode, scale and rotate the downloaded image again.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private void writeThumbnail(String key, Bitmap bitmap) {
+        final Bitmap.Config config = bitmap.getConfig();
+        if (config == null || isHardware(config) || bitmap.isRecycled()) {
+            return;
+        }
+
+        if (bitmap.getRowBytes() * bitmap.getHeight() > THUMBNAIL_MAX_BYTES) {
+            return;
+        }
+
+        final DiskLruCache diskCache;
+        synchronized (mThumbnailDiskCacheLock) {
+            diskCache = mThumbnailDiskCache;
+        }
+        if (diskCache == null) {
+            return;
+        }
+
+        DiskLruCache.Editor editor = null;
+        DataOutputStream out = null;
+        try {
+            // null if another thread is writing the same thumbnail
+            editor = diskCache.edit(key);
+            if (editor == null) {
+                return;
+            }
+
+            final boolean hasAlpha = bitmap.hasAlpha();
+            out = new DataOutputStream(new BufferedOutputStream(editor.newOutputStream(DISK_CACHE_INDEX), IO_BUFFER_SIZE));
+            out.writeInt(THUMBNAIL_MAGIC);
+            out.writeInt(bitmap.getWidth());
+            out.writeInt(bitmap.getHeight());
+            out.writeUTF(config.name());
+            out.writeBoolean(hasAlpha);
+            out.writeBoolean(!Utils.hasKitKat() || bitmap.isPremultiplied());
+
+            // WEBP can't keep alpha before API 18, PNG is lossless for the bitmaps that need it
+            final Bitmap.CompressFormat format = hasAlpha ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.WEBP;
+            if (!bitmap.compress(format, THUMBNAIL_QUALITY, out)) {
+                return;
+            }
+            out.close();
+            out = null;
+            editor.commit();
+            editor = null;
+        } catch (IOException e) {
+            Log.e(TAG, "writeThumbnail - " + e);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "writeThumbnail - " + e);
+        } finally {
+            DiskLruCache.closeQuietly(out);
+            if (editor != null) {
+                try {
+                    editor.abort();
+                } catch (IOException e) {
+                } catch (IllegalStateException e) {
+                }
             }
         }
-        return bitmap;
     }
 
-    private Bitmap processHttpNoCache(String data, int decodeWidth, int decodeHeight, boolean keepAspectRatio) {
+    /**
+     * @param listener When not null, also decodes a preview from the same download and hands it over
+     *                 before the full image is decoded
+     */
+    private Bitmap processHttpNoCache(String data, int decodeWidth, int decodeHeight, boolean keepAspectRatio,
+            DecodeOptions options, boolean storeInCache, PreviewListener listener) {
         ByteArrayOutputStreamInternal outputStream = null;
         Bitmap bitmap = null;
 
         try {
             outputStream = new ByteArrayOutputStreamInternal();
             if (downloadUrlToStream(data, outputStream)) {
-                bitmap = decodeSampledBitmapFromByteArray(outputStream.getBuffer(), decodeWidth, decodeHeight,
-                        keepAspectRatio, getCache());
+                if (storeInCache) {
+                    storeInHttpCache(data, outputStream.getBuffer(), outputStream.size());
+                }
+                if (listener != null) {
+                    final Bitmap preview = decodeDownloaded(outputStream, PREVIEW_SIZE, PREVIEW_SIZE, true,
+                            createPreviewOptions(options));
+                    if (preview != null) {
+                        listener.onPreview(preview);
+                    }
+                }
+                bitmap = decodeDownloaded(outputStream, decodeWidth, decodeHeight, keepAspectRatio, options);
             }
         } catch (IllegalStateException e) {
             Log.e(TAG, "processHttpNoCache - " + e);
@@ -251,31 +626,91 @@ public class Fetcher extends Worker {
         return bitmap;
     }
 
+    private Bitmap decodeDownloaded(ByteArrayOutputStreamInternal outputStream, int decodeWidth, int decodeHeight,
+            boolean keepAspectRatio, DecodeOptions options) {
+        final Rect region = options != null ? options.region : null;
+        if (region != null) {
+            return decodeSampledBitmapRegionFromByteArray(outputStream.getBuffer(), outputStream.size(), region,
+                    decodeWidth, decodeHeight, keepAspectRatio, getCache());
+        }
+        return decodeSampledBitmapFromByteArray(outputStream.getBuffer(), decodeWidth, decodeHeight,
+                keepAspectRatio, getCache(), options != null ? options.config : 0);
+    }
+
+    /**
+     * Images that are not in the HTTP cache yet are downloaded once and both the preview and the full
+     * image are decoded from the downloaded bytes. Once the download is in the disk cache, each decode
+     * reads it from there.
+     */
     @Override
     protected Bitmap processBitmap(String uri, int decodeWidth, int decodeHeight, boolean keepAspectRatio,
-            boolean useCache) {
+            boolean useCache, DecodeOptions options, PreviewListener listener) {
+        if (listener == null || uri.startsWith(FILE_PREFIX) || uri.startsWith(RESOURCE_PREFIX)) {
+            return super.processBitmap(uri, decodeWidth, decodeHeight, keepAspectRatio, useCache, options, listener);
+        }
+
+        if (!useCache) {
+            return processHttpNoCache(uri, decodeWidth, decodeHeight, keepAspectRatio, options, false, listener);
+        }
+
+        final DiskLruCache diskCache;
+        synchronized (mHttpDiskCacheLock) {
+            diskCache = mHttpDiskCacheStarting ? null : mHttpDiskCache;
+        }
+        if (diskCache != null) {
+            return super.processBitmap(uri, decodeWidth, decodeHeight, keepAspectRatio, useCache, options, listener);
+        }
+
+        // The cache is still starting, no need for a preview if the final bitmap is on disk already
+        final String thumbnailKey = createThumbnailKey(uri, decodeWidth, decodeHeight, keepAspectRatio, options);
+        Bitmap bitmap = readThumbnail(thumbnailKey, getCache());
+        if (bitmap != null) {
+            return bitmap;
+        }
+
+        bitmap = processHttpNoCache(uri, decodeWidth, decodeHeight, keepAspectRatio, options, true, listener);
+        if (bitmap != null) {
+            writeThumbnail(thumbnailKey, bitmap);
+        }
+        return bitmap;
+    }
+
+    @Override
+    protected Bitmap processBitmap(String uri, int decodeWidth, int decodeHeight, boolean keepAspectRatio,
+            boolean useCache, DecodeOptions options) {
         if (debuggable > 0) {
             Log.v(TAG, "process: " + uri);
         }
 
+        final Rect region = options != null ? options.region : null;
+        final int decodeConfig = options != null ? options.config : 0;
         if (uri.startsWith(FILE_PREFIX)) {
             String filename = uri.substring(FILE_PREFIX.length());
-            return decodeSampledBitmapFromFile(filename, decodeWidth, decodeHeight, keepAspectRatio, getCache());
+            if (region != null) {
+                return decodeSampledBitmapRegionFromFile(filename, region, decodeWidth, decodeHeight, keepAspectRatio,
+                        getCache());
+            }
+            return decodeSampledBitmapFromFile(filename, decodeWidth, decodeHeight, keepAspectRatio, getCache(),
+                    decodeConfig);
         } else if (uri.startsWith(RESOURCE_PREFIX)) {
             String resPath = uri.substring(RESOURCE_PREFIX.length());
             int resId = mResources.getIdentifier(resPath, "drawable", mPackageName);
             if (resId > 0) {
+                if (region != null) {
+                    return decodeSampledBitmapRegionFromResource(mResources, resId, region, decodeWidth, decodeHeight,
+                            keepAspectRatio, getCache());
+                }
                 return decodeSampledBitmapFromResource(mResources, resId, decodeWidth, decodeHeight, keepAspectRatio,
-                        getCache());
+                        getCache(), decodeConfig);
             } else {
                 Log.v(TAG, "Missing Image with resourceID: " + uri);
                 return null;
             }
         } else {
-            if (useCache && mHttpDiskCache != null) {
-                return processHttp(uri, decodeWidth, decodeHeight, keepAspectRatio);
+            if (useCache) {
+                return processHttp(uri, decodeWidth, decodeHeight, keepAspectRatio, options);
             } else {
-                return processHttpNoCache(uri, decodeWidth, decodeHeight, keepAspectRatio);
+                return processHttpNoCache(uri, decodeWidth, decodeHeight, keepAspectRatio, options, false, null);
             }
         }
     }
@@ -287,41 +722,114 @@ public class Fetcher extends Worker {
      * @return true if successful, false otherwise
      */
     public boolean downloadUrlToStream(String urlString, OutputStream outputStream) {
+        return downloadUrlToStream(urlString, outputStream, mDownloadProgressListener);
+    }
+
+    /**
+     * Download a bitmap from a URL and write the content to an output stream, reporting progress
+     * after every buffer written.
+     *
+     * @param urlString The URL to fetch
+     * @param listener  Notified on the downloading thread, can be null
+     * @return true if successful, false otherwise
+     */
+    public boolean downloadUrlToStream(String urlString, OutputStream outputStream, OnDownloadProgressListener listener) {
         disableConnectionReuseIfNecessary();
+        final Async.Http.Transport transport = Async.Http.getTransport();
         HttpURLConnection urlConnection = null;
-        BufferedOutputStream out = null;
-        BufferedInputStream in = null;
+        boolean reusable = false;
+        InputStream in = null;
+        byte[] buffer = null;
 
         try {
             final URL url = new URL(urlString);
-            urlConnection = (HttpURLConnection) url.openConnection();
-            in = new BufferedInputStream(urlConnection.getInputStream(), IO_BUFFER_SIZE);
-            out = new BufferedOutputStream(outputStream, IO_BUFFER_SIZE);
-
-            int b;
-            while ((b = in.read()) != -1) {
-                out.write(b);
+            urlConnection = transport.openConnection(url);
+            in = urlConnection.getInputStream();
+            final long contentLength = getContentLength(urlConnection);
+            buffer = obtainBuffer();
+
+            // Copy whole buffers, the DiskLruCache and ByteArrayOutputStream targets need no extra buffering
+            long total = 0;
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, count);
+                total += count;
+                if (listener != null) {
+                    listener.onDownloadProgress(urlString, total, contentLength);
+                }
             }
+            outputStream.close();
+            outputStream = null;
+            reusable = true;
             return true;
         } catch (final IOException e) {
             Log.e(TAG, "Error in downloadBitmap - " + e);
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
             try {
-                if (out != null) {
-                    out.close();
+                if (outputStream != null) {
+                    outputStream.close();
                 }
                 if (in != null) {
                     in.close();
                 }
             } catch (final IOException e) {
+                reusable = false;
             }
+            if (buffer != null) {
+                recycleBuffer(buffer);
+            }
+            transport.release(urlConnection, reusable);
         }
         return false;
     }
 
+    private static long getContentLength(HttpURLConnection connection) {
+        final String contentLength = connection.getHeaderField("Content-Length");
+        if (contentLength != null) {
+            try {
+                return Long.parseLong(contentLength);
+            } catch (NumberFormatException e) {
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] obtainBuffer() {
+        synchronized (sBufferPool) {
+            final byte[] buffer = sBufferPool.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return new byte[DOWNLOAD_BUFFER_SIZE];
+    }
+
+    private static void recycleBuffer(byte[] buffer) {
+        synchronized (sBufferPool) {
+            if (sBufferPool.size() < DOWNLOAD_BUFFER_POOL_SIZE) {
+                sBufferPool.offer(buffer);
+            }
+        }
+    }
+
+    public void setDownloadProgressListener(OnDownloadProgressListener listener) {
+        mDownloadProgressListener = listener;
+    }
+
+    /**
+     * Interface definition for callback on download progress.
+     */
+    public interface OnDownloadProgressListener {
+        /**
+         * Called on the downloading thread after each chunk written to the cache or memory.
+         *
+         * @param url           The URL being downloaded
+         * @param bytesRead     The number of bytes downloaded so far
+         * @param contentLength The response Content-Length or -1 if unknown
+         */
+        void onDownloadProgress(String url, long bytesRead, long contentLength);
+    }
+
     /**
      * Workaround for bug pre-Froyo, see here for more info:
      * http://android-developers.blogspot.com/2011/09/androids-http-clients.html
@@ -352,6 +860,14 @@ public class Fetcher extends Worker {
      */
     public static Bitmap decodeSampledBitmapFromResource(Resources res, int resId, int reqWidth, int reqHeight,
             boolean keepAspectRatio, Cache cache) {
+        return decodeSampledBitmapFromResource(res, resId, reqWidth, reqHeight, keepAspectRatio, cache, 0);
+    }
+
+    /**
+     * @param decodeConfig Combination of the Worker.DECODE_CONFIG_* flags
+     */
+    public static Bitmap decodeSampledBitmapFromResource(Resources res, int resId, int reqWidth, int reqHeight,
+            boolean keepAspectRatio, Cache cache, int decodeConfig) {
 
         // BEGIN_INCLUDE (read_bitmap_dimensions)
         // First decode with inJustDecodeBounds=true to check dimensions
@@ -360,6 +876,7 @@ public class Fetcher extends Worker {
         BitmapFactory.decodeResource(res, resId, options);
 
         options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight);
+        addConfigOptions(options, decodeConfig);
 
         // END_INCLUDE (read_bitmap_dimensions)
 
@@ -452,6 +969,14 @@ public class Fetcher extends Worker {
      */
     public static Bitmap decodeSampledBitmapFromFile(String fileName, int reqWidth, int reqHeight,
             boolean keepAspectRatio, Cache cache) {
+        return decodeSampledBitmapFromFile(fileName, reqWidth, reqHeight, keepAspectRatio, cache, 0);
+    }
+
+    /**
+     * @param decodeConfig Combination of the Worker.DECODE_CONFIG_* flags
+     */
+    public static Bitmap decodeSampledBitmapFromFile(String fileName, int reqWidth, int reqHeight,
+            boolean keepAspectRatio, Cache cache, int decodeConfig) {
 
         // First decode with inJustDecodeBounds=true to check dimensions
         final BitmapFactory.Options options = new BitmapFactory.Options();
@@ -459,6 +984,8 @@ public class Fetcher extends Worker {
         BitmapFactory.decodeFile(fileName, options);
 
         options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight);
+        addExactSizeOptions(options, reqWidth, reqHeight, keepAspectRatio);
+        addConfigOptions(options, decodeConfig);
 
         // If we're running on Honeycomb or newer, try to use inBitmap
         if (Utils.hasHoneycomb()) {
@@ -468,18 +995,21 @@ public class Fetcher extends Worker {
         // Decode bitmap with inSampleSize set
         options.inJustDecodeBounds = false;
 
-        final Bitmap bitmap = BitmapFactory.decodeFile(fileName, options);
+        final Bitmap bitmap = restoreDensity(BitmapFactory.decodeFile(fileName, options), options);
         ExifInterface ei = getExifInterface(fileName);
 
         return scaleAndRotateBitmap(bitmap, ei, reqWidth, reqHeight, keepAspectRatio);
     }
 
+    @TargetApi(Build.VERSION_CODES.O)
     private static Bitmap scaleAndRotateBitmap(Bitmap bitmap, ExifInterface ei, int reqWidth, int reqHeight,
             boolean keepAspectRatio) {
         if (bitmap == null) {
             return null;
         }
 
+        // Only reached when the decode did not already produce the final size and orientation
+        final boolean hardware = isHardware(bitmap.getConfig());
         int sourceWidth = bitmap.getWidth();
         int sourceHeight = bitmap.getHeight();
         reqWidth = reqWidth > 0 ? reqWidth : Math.min(sourceWidth, mDeviceWidthPixels);
@@ -487,6 +1017,7 @@ public class Fetcher extends Worker {
 
         // scale
         if (reqWidth != sourceWidth || reqHeight != sourceHeight) {
+            boolean scale = true;
             if (keepAspectRatio) {
                 double widthCoef = (double) sourceWidth / (double) reqWidth;
                 double heightCoef = (double) sourceHeight / (double) reqHeight;
@@ -494,9 +1025,15 @@ public class Fetcher extends Worker {
 
                 reqWidth = (int) Math.floor(sourceWidth / aspectCoef);
                 reqHeight = (int) Math.floor(sourceHeight / aspectCoef);
+
+                // Already decoded to the requested size (see addExactSizeOptions), don't copy the
+                // whole bitmap for a rounding difference.
+                scale = Math.abs(reqWidth - sourceWidth) > 1 || Math.abs(reqHeight - sourceHeight) > 1;
             }
 
-            bitmap = Bitmap.createScaledBitmap(bitmap, reqWidth, reqHeight, true);
+            if (scale) {
+                bitmap = Bitmap.createScaledBitmap(toSoftware(bitmap), reqWidth, reqHeight, true);
+            }
         }
 
         // rotate
@@ -505,10 +1042,25 @@ public class Fetcher extends Worker {
             final int rotationAngle = calculateRotationAngle(ei);
             if (rotationAngle != 0) {
                 matrix.postRotate(rotationAngle);
+                bitmap = toSoftware(bitmap);
                 bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
             }
         }
 
+        if (hardware && !isHardware(bitmap.getConfig())) {
+            bitmap = bitmap.copy(Bitmap.Config.HARDWARE, false);
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * Hardware bitmaps can't be transformed directly, copy them to ARGB_8888 first.
+     */
+    private static Bitmap toSoftware(Bitmap bitmap) {
+        if (isHardware(bitmap.getConfig())) {
+            return bitmap.copy(Bitmap.Config.ARGB_8888, false);
+        }
         return bitmap;
     }
 
@@ -543,6 +1095,14 @@ public class Fetcher extends Worker {
      */
     public static Bitmap decodeSampledBitmapFromDescriptor(FileDescriptor fileDescriptor, int reqWidth, int reqHeight,
             boolean keepAspectRatio, Cache cache) {
+        return decodeSampledBitmapFromDescriptor(fileDescriptor, reqWidth, reqHeight, keepAspectRatio, cache, 0);
+    }
+
+    /**
+     * @param decodeConfig Combination of the Worker.DECODE_CONFIG_* flags
+     */
+    public static Bitmap decodeSampledBitmapFromDescriptor(FileDescriptor fileDescriptor, int reqWidth, int reqHeight,
+            boolean keepAspectRatio, Cache cache, int decodeConfig) {
 
         // First decode with inJustDecodeBounds=true to check dimensions
         final BitmapFactory.Options options = new BitmapFactory.Options();
@@ -550,6 +1110,8 @@ public class Fetcher extends Worker {
         BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
 
         options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight);
+        addExactSizeOptions(options, reqWidth, reqHeight, keepAspectRatio);
+        addConfigOptions(options, decodeConfig);
 
         // Decode bitmap with inSampleSize set
         options.inJustDecodeBounds = false;
@@ -569,6 +1131,7 @@ public class Fetcher extends Worker {
             results = BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
             // If image is broken, rather than an issue with the inBitmap, we will get a NULL out in this case...
         }
+        restoreDensity(results, options);
 
         ExifInterface ei = getExifInterface(fileDescriptor);
 
@@ -577,6 +1140,14 @@ public class Fetcher extends Worker {
 
     public static Bitmap decodeSampledBitmapFromByteArray(byte[] buffer, int reqWidth, int reqHeight,
             boolean keepAspectRatio, Cache cache) {
+        return decodeSampledBitmapFromByteArray(buffer, reqWidth, reqHeight, keepAspectRatio, cache, 0);
+    }
+
+    /**
+     * @param decodeConfig Combination of the Worker.DECODE_CONFIG_* flags
+     */
+    public static Bitmap decodeSampledBitmapFromByteArray(byte[] buffer, int reqWidth, int reqHeight,
+            boolean keepAspectRatio, Cache cache, int decodeConfig) {
 
         // First decode with inJustDecodeBounds=true to check dimensions
         final BitmapFactory.Options options = new BitmapFactory.Options();
@@ -584,6 +1155,8 @@ public class Fetcher extends Worker {
         BitmapFactory.decodeByteArray(buffer, 0, buffer.length, options);
 
         options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight);
+        addExactSizeOptions(options, reqWidth, reqHeight, keepAspectRatio);
+        addConfigOptions(options, decodeConfig);
 
         // Decode bitmap with inSampleSize set
         options.inJustDecodeBounds = false;
@@ -593,7 +1166,7 @@ public class Fetcher extends Worker {
             addInBitmapOptions(options, cache);
         }
 
-        final Bitmap bitmap = BitmapFactory.decodeByteArray(buffer, 0, buffer.length, options);
+        final Bitmap bitmap = restoreDensity(BitmapFactory.decodeByteArray(buffer, 0, buffer.length, options), options);
 
         InputStream is = new ByteArrayInputStream(buffer);
         ExifInterface ei = getExifInterface(is);
@@ -601,6 +1174,121 @@ public class Fetcher extends Worker {
         return scaleAndRotateBitmap(bitmap, ei, reqWidth, reqHeight, keepAspectRatio);
     }
 
+    /**
+     * Decode a region of an image file and sample it down to the requested width and height. Only
+     * the region is read, so parts of very large images can be shown without decoding the whole image.
+     *
+     * @param fileName The full path of the file to decode
+     * @param region The region to decode, in source image pixels
+     * @param reqWidth The requested width of the resulting bitmap, 0 for the screen width
+     * @param reqHeight The requested height of the resulting bitmap, 0 for the screen height
+     * @param cache The Cache used to find candidate bitmaps for use with inBitmap
+     * @return The decoded region or null if it could not be decoded
+     */
+    public static Bitmap decodeSampledBitmapRegionFromFile(String fileName, Rect region, int reqWidth, int reqHeight,
+            boolean keepAspectRatio, Cache cache) {
+        final BitmapRegionDecoder decoder;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(fileName, false);
+        } catch (IOException e) {
+            Log.e(TAG, "decodeSampledBitmapRegionFromFile - " + e);
+            return null;
+        }
+
+        return decodeSampledBitmapRegion(decoder, getExifInterface(fileName), region, reqWidth, reqHeight,
+                keepAspectRatio, cache);
+    }
+
+    public static Bitmap decodeSampledBitmapRegionFromDescriptor(FileDescriptor fileDescriptor, Rect region, int reqWidth,
+            int reqHeight, boolean keepAspectRatio, Cache cache) {
+        final BitmapRegionDecoder decoder;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(fileDescriptor, false);
+        } catch (IOException e) {
+            Log.e(TAG, "decodeSampledBitmapRegionFromDescriptor - " + e);
+            return null;
+        }
+
+        return decodeSampledBitmapRegion(decoder, getExifInterface(fileDescriptor), region, reqWidth, reqHeight,
+                keepAspectRatio, cache);
+    }
+
+    public static Bitmap decodeSampledBitmapRegionFromByteArray(byte[] buffer, int length, Rect region, int reqWidth,
+            int reqHeight, boolean keepAspectRatio, Cache cache) {
+        final BitmapRegionDecoder decoder;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(buffer, 0, length, false);
+        } catch (IOException e) {
+            Log.e(TAG, "decodeSampledBitmapRegionFromByteArray - " + e);
+            return null;
+        }
+
+        InputStream is = new ByteArrayInputStream(buffer, 0, length);
+        return decodeSampledBitmapRegion(decoder, getExifInterface(is), region, reqWidth, reqHeight,
+                keepAspectRatio, cache);
+    }
+
+    public static Bitmap decodeSampledBitmapRegionFromResource(Resources res, int resId, Rect region, int reqWidth,
+            int reqHeight, boolean keepAspectRatio, Cache cache) {
+        final BitmapRegionDecoder decoder;
+        InputStream is = null;
+        try {
+            is = res.openRawResource(resId);
+            decoder = BitmapRegionDecoder.newInstance(is, false);
+        } catch (Exception e) {
+            Log.e(TAG, "decodeSampledBitmapRegionFromResource - " + e);
+            return null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        return decodeSampledBitmapRegion(decoder, getExifInterface(res.openRawResource(resId)), region, reqWidth,
+                reqHeight, keepAspectRatio, cache);
+    }
+
+    private static Bitmap decodeSampledBitmapRegion(BitmapRegionDecoder decoder, ExifInterface ei, Rect region,
+            int reqWidth, int reqHeight, boolean keepAspectRatio, Cache cache) {
+        final Rect rect = new Rect(region);
+        Bitmap bitmap = null;
+        try {
+            if (decoder == null || !rect.intersect(0, 0, decoder.getWidth(), decoder.getHeight())) {
+                return null;
+            }
+
+            // A missing decode size means the screen size, never the full resolution of a huge region
+            reqWidth = reqWidth > 0 ? reqWidth : Math.min(rect.width(), mDeviceWidthPixels);
+            reqHeight = reqHeight > 0 ? reqHeight : Math.min(rect.height(), mDeviceHeightPixels);
+
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.outWidth = rect.width();
+            options.outHeight = rect.height();
+            options.inSampleSize = calculateInSampleSize(rect.width(), rect.height(), reqWidth, reqHeight);
+
+            if (Utils.hasHoneycomb()) {
+                addInBitmapOptions(options, cache);
+            }
+
+            try {
+                bitmap = decoder.decodeRegion(rect, options);
+            } catch (IllegalArgumentException e) {
+                // inBitmap not compatible, decode into a new bitmap
+                options.inBitmap = null;
+                bitmap = decoder.decodeRegion(rect, options);
+            }
+        } finally {
+            if (decoder != null) {
+                decoder.recycle();
+            }
+        }
+
+        return scaleAndRotateBitmap(bitmap, ei, reqWidth, reqHeight, keepAspectRatio);
+    }
+
     /**
      * Calculate an inSampleSize for use in a {@link BitmapFactory.Options} object when decoding
      * bitmaps using the decode* methods from {@link BitmapFactory}. This implementation calculates
@@ -652,9 +1340,86 @@ public class Fetcher extends Worker {
         // END_INCLUDE (calculate_sample_size)
     }
 
+    /**
+     * Makes the decoder produce the size scaleAndRotateBitmap would scale to in one pass: inSampleSize
+     * is the largest power of 2 that keeps the image at least as large as the target and the
+     * remaining factor is applied with inDensity/inTargetDensity. This avoids decoding a larger
+     * bitmap and then allocating a scaled copy of it. Only uniform scaling (keepAspectRatio) can be
+     * done this way and only from KitKat, where inBitmap works with scaled decodes.
+     * Must be called with out* options populated and before addInBitmapOptions.
+     */
+    private static void addExactSizeOptions(BitmapFactory.Options options, int reqWidth, int reqHeight,
+            boolean keepAspectRatio) {
+        final int sourceWidth = options.outWidth;
+        final int sourceHeight = options.outHeight;
+        if (!keepAspectRatio || !Utils.hasKitKat() || sourceWidth <= 0 || sourceHeight <= 0) {
+            return;
+        }
+
+        reqWidth = reqWidth > 0 ? reqWidth : Math.min(sourceWidth, mDeviceWidthPixels);
+        reqHeight = reqHeight > 0 ? reqHeight : Math.min(sourceHeight, mDeviceHeightPixels);
+
+        final double aspectCoef = Math.min((double) sourceWidth / (double) reqWidth,
+                (double) sourceHeight / (double) reqHeight);
+        final int targetWidth = (int) Math.floor(sourceWidth / aspectCoef);
+        final int targetHeight = (int) Math.floor(sourceHeight / aspectCoef);
+        if (targetWidth <= 0 || targetHeight <= 0 || targetWidth >= sourceWidth) {
+            // Upscaling is left to scaleAndRotateBitmap
+            return;
+        }
+
+        int inSampleSize = 1;
+        while (sourceWidth / (inSampleSize * 2) >= targetWidth && sourceHeight / (inSampleSize * 2) >= targetHeight) {
+            inSampleSize *= 2;
+        }
+
+        options.inSampleSize = inSampleSize;
+        final int sampledWidth = sourceWidth / inSampleSize;
+        if (sampledWidth > targetWidth) {
+            options.inScaled = true;
+            options.inDensity = sampledWidth;
+            options.inTargetDensity = targetWidth;
+        }
+    }
+
+    /**
+     * addExactSizeOptions uses inDensity/inTargetDensity as a scale ratio, so the decoder stamps
+     * the target pixel width on the bitmap as its density. Put back the density a plain decode gets,
+     * otherwise BitmapDrawable reports a wrong intrinsic size.
+     */
+    private static Bitmap restoreDensity(Bitmap bitmap, BitmapFactory.Options options) {
+        if (bitmap != null && options.inTargetDensity != 0) {
+            bitmap.setDensity(Resources.getSystem().getDisplayMetrics().densityDpi);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Picks the bitmap config for the decode according to the Worker.DECODE_CONFIG_* flags.
+     * Must be called with outMimeType populated and before addInBitmapOptions.
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    private static void addConfigOptions(BitmapFactory.Options options, int decodeConfig) {
+        if ((decodeConfig & Worker.DECODE_CONFIG_HARDWARE) != 0 && Utils.hasO()) {
+            options.inPreferredConfig = Bitmap.Config.HARDWARE;
+        } else if ((decodeConfig & Worker.DECODE_CONFIG_RGB_565) != 0 && "image/jpeg".equals(options.outMimeType)) {
+            // JPEG has no alpha channel so nothing is lost but color depth
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+        }
+    }
+
+    private static boolean isHardware(Bitmap.Config config) {
+        return Utils.hasO() && config == Bitmap.Config.HARDWARE;
+    }
+
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
     private static void addInBitmapOptions(BitmapFactory.Options options, Cache cache) {
         //BEGIN_INCLUDE(add_bitmap_options)
+        // Hardware bitmaps are immutable and can't be decoded into an existing bitmap
+        if (isHardware(options.inPreferredConfig)) {
+            return;
+        }
+
         // inBitmap only works with mutable bitmaps so force the decoder to
         // return mutable bitmaps.
         options.inMutable = true;
@@ -56,4 +56,8 @@ public class Utils {
     public static boolean hasN() {
         return Build.VERSION.SDK_INT >= VERSION_CODES.N;
     }
+
+    public static boolean hasO() {
+        return Build.VERSION.SDK_INT >= VERSION_CODES.O;
+    }
 }
\ No newline at end of file
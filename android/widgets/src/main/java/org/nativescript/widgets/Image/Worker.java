@@ -22,11 +22,15 @@ import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.util.Log;
 import android.widget.ImageView;
 import java.lang.ref.WeakReference;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * This class wraps up completing some arbitrary long running work when loading a bitmap to an
@@ -37,6 +41,17 @@ public abstract class Worker {
 
     protected static final String RESOURCE_PREFIX = "res://";
     protected static final String FILE_PREFIX = "file:///";
+    /**
+     * Decode config flags for {@link DecodeOptions#config}. Without flags images are decoded as ARGB_8888.
+     * DECODE_CONFIG_RGB_565 decodes opaque (JPEG) images as RGB_565, using half the memory.
+     * DECODE_CONFIG_HARDWARE decodes into GPU memory on API 26+, for images whose pixels are never accessed.
+     * When both are set hardware bitmaps are used where available and RGB_565 elsewhere.
+     */
+    public static final int DECODE_CONFIG_RGB_565 = 1;
+    public static final int DECODE_CONFIG_HARDWARE = 2;
+
+    // Bounding box of the low resolution image shown first when decoding progressively
+    protected static final int PREVIEW_SIZE = 256;
 
     static final String TAG = "JS";
     private static final int FADE_IN_TIME = 200;
@@ -46,6 +61,9 @@ public abstract class Worker {
     private boolean mFadeInBitmap = true;
     private boolean mExitTasksEarly = false;
     private final Object mPauseWorkLock = new Object();
+    // Number of BitmapWorkerTasks running, guarded by mPauseWorkLock
+    private int mActiveTasks;
+    private ExecutorService mPrefetchExecutor;
 
     protected boolean mPauseWork = false;
     protected Resources mResources;
@@ -96,6 +114,16 @@ public abstract class Worker {
      * @param listener A listener that will be called back once the image has been loaded.
      */
     public void loadImage(String uri, BitmapOwner owner, int decodeWidth, int decodeHeight, boolean keepAspectRatio, boolean useCache, boolean async, OnImageLoadedListener listener) {
+        loadImage(uri, owner, decodeWidth, decodeHeight, keepAspectRatio, useCache, async, listener, null);
+    }
+
+    /**
+     * Same as {@link #loadImage(String, BitmapOwner, int, int, boolean, boolean, boolean, OnImageLoadedListener)}
+     * with additional decode options.
+     *
+     * @param options Region and progressive decoding options, can be null.
+     */
+    public void loadImage(String uri, BitmapOwner owner, int decodeWidth, int decodeHeight, boolean keepAspectRatio, boolean useCache, boolean async, OnImageLoadedListener listener, DecodeOptions options) {
         if (uri == null) {
             return;
         }
@@ -109,14 +137,14 @@ public abstract class Worker {
 
         if (mCache != null && useCache) {
             // Create new image cache for images with different decodeHeight/decodeWidth.
-            cacheUri = createCacheUri(uri, decodeHeight, decodeWidth);
+            cacheUri = createCacheUri(uri, decodeHeight, decodeWidth, options);
 
             value = mCache.getBitmapFromMemCache(cacheUri);
         }
 
         if (value == null && !async) {
             // Decode sync.
-            value = processBitmap(uri, decodeWidth, decodeHeight, keepAspectRatio, useCache);
+            value = processBitmap(uri, decodeWidth, decodeHeight, keepAspectRatio, useCache, options);
             if (value != null) {
                 if (mCache != null && useCache) {
                     if (debuggable > 0) {
@@ -140,7 +168,7 @@ public abstract class Worker {
                 listener.onImageLoaded(true);
             }
         } else if (cancelPotentialWork(uri, owner)) {
-            final BitmapWorkerTask task = new BitmapWorkerTask(uri, owner, decodeWidth, decodeHeight, keepAspectRatio, useCache, listener);
+            final BitmapWorkerTask task = new BitmapWorkerTask(uri, owner, decodeWidth, decodeHeight, keepAspectRatio, useCache, listener, options);
             final AsyncDrawable asyncDrawable =
                     new AsyncDrawable(mResources, mLoadingBitmap, task);
             owner.setDrawable(asyncDrawable);
@@ -152,6 +180,123 @@ public abstract class Worker {
         }
     }
 
+    /**
+     * Loads images into the memory and disk caches ahead of time, e.g. the next screen of a list
+     * while it scrolls. The images are processed one at a time on a single background thread and
+     * only while no image for an owner is loading and work is not paused, so prefetching never
+     * delays visible images.
+     *
+     * @param uris          The images to load
+     * @param decodeWidths  The decode width for each uri
+     * @param decodeHeights The decode height for each uri
+     * @return A handle that stops the remaining prefetching when cancelled
+     */
+    public PrefetchHandle prefetch(final String[] uris, final int[] decodeWidths, final int[] decodeHeights,
+                                   final boolean keepAspectRatio) {
+        if (uris == null || decodeWidths == null || decodeHeights == null
+                || uris.length != decodeWidths.length || uris.length != decodeHeights.length) {
+            throw new IllegalArgumentException("prefetch - uris, decodeWidths and decodeHeights must have the same length");
+        }
+
+        final PrefetchHandle handle = new PrefetchHandle();
+        prefetchExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < uris.length; i++) {
+                    if (!waitForIdle(handle)) {
+                        return;
+                    }
+
+                    prefetch(uris[i], decodeWidths[i], decodeHeights[i], keepAspectRatio);
+                }
+            }
+        });
+
+        return handle;
+    }
+
+    private void prefetch(String uri, int decodeWidth, int decodeHeight, boolean keepAspectRatio) {
+        if (uri == null) {
+            return;
+        }
+
+        final String cacheUri = createCacheUri(uri, decodeHeight, decodeWidth, null);
+        if (mCache != null && mCache.isInMemCache(cacheUri)) {
+            return;
+        }
+
+        if (debuggable > 0) {
+            Log.v(TAG, "prefetch: " + uri);
+        }
+
+        // Without a memory cache this still fills the disk caches
+        final Bitmap bitmap = processBitmap(uri, decodeWidth, decodeHeight, keepAspectRatio, true, null);
+        if (bitmap != null && mCache != null) {
+            mCache.addBitmapToCache(cacheUri, bitmap, false);
+        }
+    }
+
+    /**
+     * Blocks while work is paused or images for owners are loading.
+     *
+     * @return false if the prefetch was cancelled
+     */
+    private boolean waitForIdle(PrefetchHandle handle) {
+        synchronized (mPauseWorkLock) {
+            while ((mPauseWork || mActiveTasks > 0) && !handle.mCancelled && !mExitTasksEarly) {
+                try {
+                    mPauseWorkLock.wait();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+        }
+
+        return !handle.mCancelled && !mExitTasksEarly;
+    }
+
+    private synchronized ExecutorService prefetchExecutor() {
+        if (mPrefetchExecutor == null) {
+            mPrefetchExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_LOWEST);
+                            r.run();
+                        }
+                    }, "ImagePrefetch");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return mPrefetchExecutor;
+    }
+
+    /**
+     * Returned by {@link #prefetch(String[], int[], int[], boolean)}.
+     */
+    public class PrefetchHandle {
+        private volatile boolean mCancelled;
+
+        /**
+         * Stops prefetching the images not loaded yet. An image being loaded is still completed.
+         */
+        public void cancel() {
+            synchronized (mPauseWorkLock) {
+                mCancelled = true;
+                mPauseWorkLock.notifyAll();
+            }
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
     /**
      * Set placeholder bitmap that shows when the the background thread is running.
      *
@@ -199,7 +344,38 @@ public abstract class Worker {
      *            {@link Worker#loadImage(String, BitmapOwner, int, int, boolean, boolean, OnImageLoadedListener)}
      * @return The processed bitmap
      */
-    protected abstract Bitmap processBitmap(String uri, int decodeWidth, int decodeHeight, boolean keepAspectRatio, boolean useCache);
+    protected abstract Bitmap processBitmap(String uri, int decodeWidth, int decodeHeight, boolean keepAspectRatio, boolean useCache, DecodeOptions options);
+
+    /**
+     * Produces the final bitmap for a progressive load, handing a small version of the image to the
+     * listener first. The default decodes the source twice, subclasses can override this to decode
+     * both from a single read, e.g. a single download. Images from the network are only previewed when
+     * the download is kept in the disk cache.
+     *
+     * @param listener Receives the preview on the background thread, null to skip the preview
+     * @return The processed bitmap
+     */
+    protected Bitmap processBitmap(String uri, int decodeWidth, int decodeHeight, boolean keepAspectRatio, boolean useCache, DecodeOptions options, PreviewListener listener) {
+        if (listener != null && (useCache || uri.startsWith(FILE_PREFIX) || uri.startsWith(RESOURCE_PREFIX))) {
+            final Bitmap preview = processBitmap(uri, PREVIEW_SIZE, PREVIEW_SIZE, true, useCache, createPreviewOptions(options));
+            if (preview != null) {
+                listener.onPreview(preview);
+            }
+        }
+        return processBitmap(uri, decodeWidth, decodeHeight, keepAspectRatio, useCache, options);
+    }
+
+    /**
+     * @return The options to decode the preview of an image decoded with options
+     */
+    protected static DecodeOptions createPreviewOptions(DecodeOptions options) {
+        final DecodeOptions previewOptions = new DecodeOptions();
+        if (options != null) {
+            previewOptions.region = options.region;
+            previewOptions.config = options.config;
+        }
+        return previewOptions;
+    }
 
     /**
      * @return The {@link Cache} object currently being used by this Worker.
@@ -265,37 +441,54 @@ public abstract class Worker {
     /**
      * Create cache key depending on image uri and decode properties.
      */
-    private static String createCacheUri(String uri, int decodeHeight, int decodeWidth) {
+    protected static String createCacheUri(String uri, int decodeHeight, int decodeWidth) {
         uri += decodeHeight != 0 ? "height%%" + String.valueOf(decodeHeight): "";
         uri += decodeWidth != 0 ? "width%%" + String.valueOf(decodeWidth): "";
 
         return uri;
     }
 
+    /**
+     * Create cache key depending on image uri, decode properties and decoded region.
+     */
+    protected static String createCacheUri(String uri, int decodeHeight, int decodeWidth, DecodeOptions options) {
+        uri = createCacheUri(uri, decodeHeight, decodeWidth);
+        if (options != null && options.region != null) {
+            uri += "region%%" + options.region.flattenToString();
+        }
+        if (options != null && options.config != 0) {
+            uri += "config%%" + String.valueOf(options.config);
+        }
+
+        return uri;
+    }
+
     /**
      * The actual AsyncTask that will asynchronously process the image.
      */
-    private class BitmapWorkerTask extends AsyncTask<Void, Void, Bitmap> {
+    private class BitmapWorkerTask extends AsyncTask<Void, Bitmap, Bitmap> implements PreviewListener {
         private int mDecodeWidth;
         private int mDecodeHeight;
         private boolean mKeepAspectRatio;
         private String mUri;
         private String mCacheUri;
         private boolean mCacheImage;
+        private final DecodeOptions mOptions;
         private final WeakReference<BitmapOwner> imageViewReference;
         private final OnImageLoadedListener mOnImageLoadedListener;
 
         public BitmapWorkerTask(String uri, BitmapOwner owner, int decodeWidth, int decodeHeight, boolean keepAspectRatio, boolean cacheImage) {
-            this(uri, owner, decodeWidth, decodeHeight, keepAspectRatio, cacheImage, null);
+            this(uri, owner, decodeWidth, decodeHeight, keepAspectRatio, cacheImage, null, null);
         }
 
-        public BitmapWorkerTask(String uri, BitmapOwner owner, int decodeWidth, int decodeHeight, boolean keepAspectRatio, boolean cacheImage, OnImageLoadedListener listener) {
+        public BitmapWorkerTask(String uri, BitmapOwner owner, int decodeWidth, int decodeHeight, boolean keepAspectRatio, boolean cacheImage, OnImageLoadedListener listener, DecodeOptions options) {
             mDecodeWidth = decodeWidth;
             mDecodeHeight = decodeHeight;
             mKeepAspectRatio = keepAspectRatio;
             mCacheImage = cacheImage;
+            mOptions = options;
             mUri = uri;
-            mCacheUri = createCacheUri(uri, decodeHeight, decodeWidth);
+            mCacheUri = createCacheUri(uri, decodeHeight, decodeWidth, options);
             imageViewReference = new WeakReference<BitmapOwner>(owner);
             mOnImageLoadedListener = listener;
         }
@@ -305,6 +498,24 @@ public abstract class Worker {
          */
         @Override
         protected Bitmap doInBackground(Void... params) {
+            // Prefetching waits while there is work for visible images
+            synchronized (mPauseWorkLock) {
+                mActiveTasks++;
+            }
+
+            try {
+                return processInBackground();
+            } finally {
+                synchronized (mPauseWorkLock) {
+                    mActiveTasks--;
+                    if (mActiveTasks == 0) {
+                        mPauseWorkLock.notifyAll();
+                    }
+                }
+            }
+        }
+
+        private Bitmap processInBackground() {
             if (debuggable > 0) {
                 Log.v(TAG, "doInBackground - starting work: " + imageViewReference.get() + ", on: " + mUri);
             }
@@ -327,7 +538,11 @@ public abstract class Worker {
             // process method (as implemented by a subclass)
             if (bitmap == null && !isCancelled() && getAttachedOwner() != null
                     && !mExitTasksEarly) {
-                bitmap = processBitmap(mUri, mDecodeWidth, mDecodeHeight, mKeepAspectRatio, mCacheImage);
+                if (mOptions != null && mOptions.progressive) {
+                    bitmap = processBitmap(mUri, mDecodeWidth, mDecodeHeight, mKeepAspectRatio, mCacheImage, mOptions, this);
+                } else {
+                    bitmap = processBitmap(mUri, mDecodeWidth, mDecodeHeight, mKeepAspectRatio, mCacheImage, mOptions);
+                }
             }
 
             // If the bitmap was processed and the image cache is available, then add the processed
@@ -350,6 +565,29 @@ public abstract class Worker {
             return bitmap;
         }
 
+        /**
+         * Shows the small version of the image until the full decode completes.
+         */
+        @Override
+        public void onPreview(Bitmap preview) {
+            if (!isCancelled()) {
+                publishProgress(preview);
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Bitmap... values) {
+            if (isCancelled() || mExitTasksEarly) {
+                return;
+            }
+
+            final BitmapOwner owner = getAttachedOwner();
+            if (owner != null) {
+                // Keep the owner bound to this task while showing the preview
+                owner.setDrawable(new AsyncDrawable(mResources, values[0], this));
+            }
+        }
+
         /**
          * Once the image is processed, associates it to the imageView
          */
@@ -410,6 +648,36 @@ public abstract class Worker {
         }
     }
 
+    /**
+     * Receives the low resolution image of a progressive load, see
+     * {@link Worker#processBitmap(String, int, int, boolean, boolean, DecodeOptions, PreviewListener)}.
+     */
+    protected interface PreviewListener {
+        void onPreview(Bitmap preview);
+    }
+
+    /**
+     * Optional settings for decoding an image, see
+     * {@link #loadImage(String, BitmapOwner, int, int, boolean, boolean, boolean, OnImageLoadedListener, DecodeOptions)}.
+     */
+    public static class DecodeOptions {
+        /**
+         * Show a low resolution version of the image while the full size one is decoded.
+         */
+        public boolean progressive;
+
+        /**
+         * Part of the source image to decode, in source pixels, e.g. the visible part of a zoomed image.
+         * Only this region is read and sampled down to the decode size. Null decodes the whole image.
+         */
+        public Rect region;
+
+        /**
+         * Combination of the DECODE_CONFIG_* flags, 0 for the default ARGB_8888 config.
+         */
+        public int config;
+    }
+
     /**
      * Interface definition for callback on image loaded successfully.
      */
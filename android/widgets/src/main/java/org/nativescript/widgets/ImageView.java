@@ -5,6 +5,7 @@ package org.nativescript.widgets;
 
 import android.content.Context;
 import android.graphics.*;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.shapes.RoundRectShape;
 
@@ -33,6 +34,9 @@ public class ImageView extends android.widget.ImageView implements BitmapOwner {
     private boolean mKeepAspectRatio;
     private boolean mUseCache;
     private boolean mAsync;
+    private Worker.DecodeOptions mDecodeOptions;
+    // Bitmap of the placeholder shown while the image loads, e.g. the low resolution preview of a progressive decode.
+    private Bitmap mPlaceholderBitmap;
     private Worker.OnImageLoadedListener mListener;
     private boolean mAttachedToWindow = false;
 
@@ -167,7 +171,15 @@ public class ImageView extends android.widget.ImageView implements BitmapOwner {
     }
 
     public void setUri(String uri, int decodeWidth, int decodeHeight, boolean keepAspectRatio, boolean useCache, boolean async) {
+        this.setUri(uri, decodeWidth, decodeHeight, keepAspectRatio, useCache, async, null);
+    }
+
+    /**
+     * @param options Decode a region of the image or show a low resolution preview first, can be null.
+     */
+    public void setUri(String uri, int decodeWidth, int decodeHeight, boolean keepAspectRatio, boolean useCache, boolean async, Worker.DecodeOptions options) {
         mUri = uri;
+        mDecodeOptions = options;
         mDecodeWidth = decodeWidth;
         mDecodeHeight = decodeHeight;
         mKeepAspectRatio = keepAspectRatio;
@@ -194,7 +206,7 @@ public class ImageView extends android.widget.ImageView implements BitmapOwner {
         Fetcher fetcher = Fetcher.getInstance(this.getContext());
         if (mUri != null && fetcher != null) {
             // Get the Bitmap from cache.
-            fetcher.loadImage(mUri, this, mDecodeWidth, mDecodeHeight, mKeepAspectRatio, mUseCache, mAsync, mListener);
+            fetcher.loadImage(mUri, this, mDecodeWidth, mDecodeHeight, mKeepAspectRatio, mUseCache, mAsync, mListener, mDecodeOptions);
         }
     }
 
@@ -209,13 +221,15 @@ public class ImageView extends android.widget.ImageView implements BitmapOwner {
 
         super.setImageBitmap(bm);
         this.mBitmap = bm;
+        this.mPlaceholderBitmap = null;
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
         BorderDrawable background = this.getBackground() instanceof BorderDrawable ? (BorderDrawable) this.getBackground() : null;
 
-        if (this.mBitmap != null) {
+        final Bitmap bitmap = this.mPlaceholderBitmap != null ? this.mPlaceholderBitmap : this.mBitmap;
+        if (bitmap != null) {
             float borderTopLeftRadius, borderTopRightRadius, borderBottomRightRadius, borderBottomLeftRadius;
 
             if (background != null) {
@@ -254,10 +268,10 @@ public class ImageView extends android.widget.ImageView implements BitmapOwner {
             path.addRoundRect(new RectF(borderLeftWidth, borderTopWidth, borderLeftWidth + innerWidth, borderTopWidth + innerHeight), radii, Path.Direction.CW);
 
             Paint paint = new Paint();
-            BitmapShader bitmapShader = new BitmapShader(this.mBitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+            BitmapShader bitmapShader = new BitmapShader(bitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
 
-            float bitmapWidth = (float) mBitmap.getWidth();
-            float bitmapHeight = (float) mBitmap.getHeight();
+            float bitmapWidth = (float) bitmap.getWidth();
+            float bitmapHeight = (float) bitmap.getHeight();
 
             Matrix matrix = this.mMatrix;
             matrix.reset();
@@ -331,5 +345,6 @@ public class ImageView extends android.widget.ImageView implements BitmapOwner {
     @Override
     public void setDrawable(Drawable asyncDrawable) {
         this.setImageDrawable(asyncDrawable);
+        this.mPlaceholderBitmap = asyncDrawable instanceof BitmapDrawable ? ((BitmapDrawable) asyncDrawable).getBitmap() : null;
     }
 }
\ No newline at end of file
@@ -23,6 +23,26 @@ public abstract class LayoutBase extends ViewGroup {
 
     private boolean passThroughParent;
 
+    // Counters of CommonLayoutParams.measureChild calls, measure happens on the UI thread only.
+    static int measureCacheHits;
+    static int measureCacheMisses;
+
+    /**
+     * Returns how many times a child measure was skipped because the child didn't request layout
+     * and neither the measure specs nor its layout params changed since its last measure.
+     */
+    public static int getMeasureCacheHits() { return measureCacheHits; }
+
+    /**
+     * Returns how many times a child was actually measured.
+     */
+    public static int getMeasureCacheMisses() { return measureCacheMisses; }
+
+    public static void resetMeasureCacheStats() {
+        measureCacheHits = 0;
+        measureCacheMisses = 0;
+    }
+
     public boolean getPassThroughParent() { return this.passThroughParent; }
     public void setPassThroughParent(boolean value) { this.passThroughParent = value; }
 
@@ -134,8 +134,6 @@ public class StackLayout extends LayoutBase {
         else {
             this.layoutHorizontal(l, t, r, b);
         }
-
-        CommonLayoutParams.restoreOriginalParams(this);
     }
 
     private void layoutVertical(int left, int top, int right, int bottom) {
@@ -224,9 +222,9 @@ public class StackLayout extends LayoutBase {
     }
 
     private boolean isUnsizedScrollableView(View child) {
-        LayoutParams childLayoutParams = child.getLayoutParams();
+        CommonLayoutParams childLayoutParams = (CommonLayoutParams) child.getLayoutParams();
 
-        if (childLayoutParams.height == -1 && (child instanceof android.widget.ListView || child instanceof org.nativescript.widgets.VerticalScrollView)) {
+        if (childLayoutParams.getComputedHeight() == -1 && (child instanceof android.widget.ListView || child instanceof org.nativescript.widgets.VerticalScrollView)) {
             return true;
         }
 
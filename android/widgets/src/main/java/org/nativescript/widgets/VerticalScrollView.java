@@ -150,11 +150,11 @@ public class VerticalScrollView extends ScrollView {
 
 	    	// Android ScrollView does not account to child margins so we set them as paddings. Otherwise you can never scroll to bottom. 
 	    	CommonLayoutParams lp = (CommonLayoutParams)child.getLayoutParams();
-	    	this.setPadding(lp.leftMargin, lp.topMargin, lp.rightMargin, lp.bottomMargin);
+	    	this.setPadding(lp.getComputedLeftMargin(), lp.getComputedTopMargin(), lp.getComputedRightMargin(), lp.getComputedBottomMargin());
 	    }
 	
 	    // Don't add in our paddings because they are already added as child margins. (we will include them twice if we add them).
-	    // check the previous line - this.setPadding(lp.leftMargin, lp.topMargin, lp.rightMargin, lp.bottomMargin);
+	    // check the previous line - this.setPadding(lp.getComputedLeftMargin(), lp.getComputedTopMargin(), lp.getComputedRightMargin(), lp.getComputedBottomMargin());
 //	    this.contentMeasuredWidth += this.getPaddingLeft() + this.getPaddingRight();
 //	    this.contentMeasuredHeight += this.getPaddingTop() + this.getPaddingBottom();
 	
@@ -212,8 +212,6 @@ public class VerticalScrollView extends ScrollView {
 	
 	    // Calling this with the present values causes it to re-claim them
 	    this.scrollTo(scrollX, scrollY);
-
-		CommonLayoutParams.restoreOriginalParams(this);
 	}
 
     @Override
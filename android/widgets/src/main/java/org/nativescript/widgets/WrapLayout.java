@@ -249,7 +249,5 @@ public class WrapLayout extends LayoutBase {
                 childLeft += childWidth;
             }
         }
-
-        CommonLayoutParams.restoreOriginalParams(this);
     }
 }
\ No newline at end of file